@@ -0,0 +1,214 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client sending many files per request: one STORE_BATCH, LOAD_BATCH or REMOVE_BATCH round trip to the Controller
+ * for the whole batch, and one connection per Dstore carrying all of its files of a STORE_BATCH
+ */
+public class BatchClient {
+
+	// not part of the Protocol class shipped in client.jar
+	public static final String STORE_BATCH_TOKEN = "STORE_BATCH";
+	public static final String STORE_BATCH_TO_TOKEN = "STORE_BATCH_TO";
+	public static final String STORE_BATCH_COMPLETE_TOKEN = "STORE_BATCH_COMPLETE";
+	public static final String LOAD_BATCH_TOKEN = "LOAD_BATCH";
+	public static final String LOAD_FROM_BATCH_TOKEN = "LOAD_FROM_BATCH";
+	public static final String REMOVE_BATCH_TOKEN = "REMOVE_BATCH";
+	public static final String REMOVE_BATCH_COMPLETE_TOKEN = "REMOVE_BATCH_COMPLETE";
+
+	private final int cport;
+	private final int timeout;
+	private final ExecutorService transfers = Executors.newFixedThreadPool(16);
+	private Socket controller;
+	private BufferedReader in;
+	private PrintWriter out;
+
+	public BatchClient(int cport, int timeout) {
+		this.cport = cport;
+		this.timeout = timeout;
+	}
+
+	public void connect() throws IOException {
+		controller = new Socket("localhost", cport);
+		controller.setSoTimeout(timeout);
+		controller.setTcpNoDelay(true);
+		in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+		out = new PrintWriter(controller.getOutputStream(), true);
+	}
+
+	public void disconnect() throws IOException {
+		transfers.shutdown();
+		if (controller != null)
+			controller.close();
+	}
+
+	/**
+	 * Store a batch of files
+	 * @return the names of the files stored, files that already existed or failed are missing
+	 */
+	public List<String> storeBatch(List<File> files) throws IOException, NotEnoughDstoresException {
+		StringBuilder command = new StringBuilder(STORE_BATCH_TOKEN);
+		Map<String, File> byName = new HashMap<>();
+		for (File file : files) {
+			command.append(' ').append(file.getName()).append(' ').append(file.length());
+			byName.put(file.getName(), file);
+		}
+		out.println(command);
+
+		String[] reply = readReply(STORE_BATCH_TO_TOKEN);
+		int r = Integer.parseInt(reply[1]);
+
+		// every Dstore gets all of its files on one connection
+		Map<Integer, List<File>> perDstore = new LinkedHashMap<>();
+		for (int i = 2; i + r < reply.length; i += r + 1) {
+			File file = byName.get(reply[i]);
+			for (int j = i + 1; j <= i + r; j++)
+				perDstore.computeIfAbsent(Integer.parseInt(reply[j]), port -> new ArrayList<>()).add(file);
+		}
+		List<Future<?>> uploads = new ArrayList<>();
+		for (Map.Entry<Integer, List<File>> entry : perDstore.entrySet())
+			uploads.add(transfers.submit(() -> upload(entry.getKey(), entry.getValue())));
+		for (Future<?> upload : uploads)
+			await(upload);
+
+		String[] complete = readReply(STORE_BATCH_COMPLETE_TOKEN);
+		return Arrays.asList(complete).subList(1, complete.length);
+	}
+
+	private void upload(int port, List<File> files) {
+		StringBuilder command = new StringBuilder(STORE_BATCH_TOKEN);
+		for (File file : files)
+			command.append(' ').append(file.getName()).append(' ').append(file.length());
+
+		try (SocketChannel dstore = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+			dstore.socket().setSoTimeout(timeout);
+			dstore.socket().setTcpNoDelay(true);
+			new PrintWriter(dstore.socket().getOutputStream(), true).println(command);
+			if (!"ACK".equals(new BufferedReader(new InputStreamReader(dstore.socket().getInputStream())).readLine()))
+				throw new IOException("Dstore " + port + " did not acknowledge " + STORE_BATCH_TOKEN);
+
+			for (File file : files) {
+				try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					long position = 0;
+					while (position < file.length())
+						position += source.transferTo(position, file.length() - position, dstore);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Batch upload to " + port + " failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Load a batch of files into a folder, falling back to RELOAD for the files whose Dstore failed
+	 * @return the names of the files loaded
+	 */
+	public List<String> loadBatch(List<String> names, File downloadFolder) throws IOException, NotEnoughDstoresException {
+		out.println(LOAD_BATCH_TOKEN + " " + String.join(" ", names));
+		String[] reply = readReply(LOAD_FROM_BATCH_TOKEN);
+
+		List<String> requested = new ArrayList<>();
+		List<Future<Boolean>> loads = new ArrayList<>();
+		for (int i = 1; i + 2 < reply.length; i += 3) {
+			String fileName = reply[i];
+			int port = Integer.parseInt(reply[i + 1]);
+			long fileSize = Long.parseLong(reply[i + 2]);
+			requested.add(fileName);
+			loads.add(transfers.submit(() -> download(port, fileName, fileSize, downloadFolder)));
+		}
+
+		List<String> loaded = new ArrayList<>();
+		for (int i = 0; i < loads.size(); i++) {
+			String fileName = requested.get(i);
+			if (await(loads.get(i)) || reload(fileName, downloadFolder))
+				loaded.add(fileName);
+		}
+		return loaded;
+	}
+
+	private boolean reload(String fileName, File downloadFolder) throws IOException {
+		while (true) {
+			out.println("RELOAD " + fileName);
+			String[] reply = in.readLine().split(" ");
+			if (!reply[0].equals("LOAD_FROM"))
+				return false;
+			if (download(Integer.parseInt(reply[1]), fileName, Long.parseLong(reply[2]), downloadFolder))
+				return true;
+		}
+	}
+
+	private boolean download(int port, String fileName, long fileSize, File downloadFolder) {
+		File file = new File(downloadFolder, fileName);
+		try (SocketChannel dstore = SocketChannel.open(new InetSocketAddress("localhost", port));
+				FileChannel target = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			dstore.socket().setSoTimeout(timeout);
+			new PrintWriter(dstore.socket().getOutputStream(), true).println("LOAD_DATA " + fileName);
+			ReadableByteChannel source = Channels.newChannel(dstore.socket().getInputStream());
+			long position = 0;
+			while (position < fileSize) {
+				long transferred = target.transferFrom(source, position, fileSize - position);
+				if (transferred <= 0)
+					break;
+				position += transferred;
+			}
+			return position == fileSize;
+		} catch (IOException e) {
+			System.out.println("Load of " + fileName + " from " + port + " failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Remove a batch of files
+	 * @return the names of the files removed from all of their Dstores
+	 */
+	public List<String> removeBatch(List<String> names) throws IOException, NotEnoughDstoresException {
+		out.println(REMOVE_BATCH_TOKEN + " " + String.join(" ", names));
+		String[] reply = readReply(REMOVE_BATCH_COMPLETE_TOKEN);
+		return Arrays.asList(reply).subList(1, reply.length);
+	}
+
+	private String[] readReply(String expected) throws IOException, NotEnoughDstoresException {
+		String reply = in.readLine();
+		if (reply == null)
+			throw new IOException("Connection closed by the Controller");
+		if (reply.equals("ERROR_NOT_ENOUGH_DSTORES"))
+			throw new NotEnoughDstoresException();
+		String[] fields = reply.split(" ");
+		if (!fields[0].equals(expected))
+			throw new IOException("Unexpected message: " + reply);
+		return fields;
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Client storing files through a replication chain: the file is uploaded once, to the first Dstore of STORE_TO,
+ * and each Dstore passes it on to the next one while writing it
+ */
+public class ChainClient {
+
+	// not part of the Protocol class shipped in client.jar
+	public static final String STORE_CHAIN_TOKEN = "STORE_CHAIN";
+
+	private final int cport;
+	private final int timeout;
+	private Socket controller;
+	private BufferedReader in;
+	private PrintWriter out;
+
+	public ChainClient(int cport, int timeout) {
+		this.cport = cport;
+		this.timeout = timeout;
+	}
+
+	public void connect() throws IOException {
+		controller = new Socket("localhost", cport);
+		controller.setSoTimeout(timeout);
+		in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+		out = new PrintWriter(controller.getOutputStream(), true);
+	}
+
+	public void disconnect() throws IOException {
+		if (controller != null)
+			controller.close();
+	}
+
+	public void store(File file) throws IOException, NotEnoughDstoresException, FileAlreadyExistsException {
+		String fileName = file.getName();
+		long fileSize = file.length();
+
+		out.println("STORE " + fileName + " " + fileSize);
+		String reply = in.readLine();
+		if (reply == null)
+			throw new IOException("Connection closed by the Controller");
+		if (reply.equals("ERROR_NOT_ENOUGH_DSTORES"))
+			throw new NotEnoughDstoresException();
+		if (reply.equals("ERROR_FILE_ALREADY_EXISTS"))
+			throw new FileAlreadyExistsException(fileName);
+
+		String[] ports = reply.split(" ");
+		if (!ports[0].equals("STORE_TO") || ports.length < 2)
+			throw new IOException("Unexpected message: " + reply);
+
+		// the first Dstore gets the data together with the rest of the chain
+		StringBuilder command = new StringBuilder(STORE_CHAIN_TOKEN).append(' ').append(fileName).append(' ').append(fileSize);
+		for (int i = 2; i < ports.length; i++)
+			command.append(' ').append(ports[i]);
+
+		try (SocketChannel dstore = SocketChannel.open(new InetSocketAddress("localhost", Integer.parseInt(ports[1])));
+				FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// generous ACK deadline, the chain is set up hop by hop before the head answers
+			dstore.socket().setSoTimeout(timeout * ports.length);
+			PrintWriter dstoreOut = new PrintWriter(dstore.socket().getOutputStream(), true);
+			BufferedReader dstoreIn = new BufferedReader(new InputStreamReader(dstore.socket().getInputStream()));
+			dstoreOut.println(command);
+			if (!"ACK".equals(dstoreIn.readLine()))
+				throw new IOException("Dstore " + ports[1] + " did not acknowledge " + command);
+
+			long position = 0;
+			while (position < fileSize)
+				position += source.transferTo(position, fileSize - position, dstore);
+		}
+
+		reply = in.readLine();
+		if (!"STORE_COMPLETE".equals(reply))
+			throw new IOException("Store of " + fileName + " not completed: " + reply);
+	}
+
+}
@@ -1,6 +1,14 @@
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClientMain {
 	
@@ -9,6 +17,37 @@ public class ClientMain {
 		final int cport = Integer.parseInt(args[0]);
 		int timeout = Integer.parseInt(args[1]);
 		
+		// an optional third argument runs the connection load test with that many concurrent clients instead,
+		// or stores the to_store folder through a replication chain when it is 'chain',
+		// or stores and loads it back with resumable transfers when it is 'resume',
+		// or stores it and compares plain loads with striped loads when it is 'striped',
+		// or stores, loads and removes that many small files in batches when it is 'batch' followed by a count,
+		// or does the same with every operation in flight at once on one connection when it is 'pipelined' followed by a count
+		if (args.length > 2 && args[2].equals("chain")) {
+			chainClient(cport, timeout, new File("to_store"));
+			return;
+		}
+		if (args.length > 2 && args[2].equals("striped")) {
+			stripedClient(cport, timeout, new File("downloads"), new File("to_store"));
+			return;
+		}
+		if (args.length > 3 && args[2].equals("batch")) {
+			batchClient(cport, timeout, Integer.parseInt(args[3]));
+			return;
+		}
+		if (args.length > 3 && args[2].equals("pipelined")) {
+			pipelinedClient(cport, timeout, Integer.parseInt(args[3]));
+			return;
+		}
+		if (args.length > 2 && args[2].equals("resume")) {
+			resumableClient(cport, timeout, new File("downloads"), new File("to_store"));
+			return;
+		}
+		if (args.length > 2) {
+			loadTestClient(cport, timeout, Integer.parseInt(args[2]));
+			return;
+		}
+		
 		// this client expects a 'downloads' folder in the current directory; all files loaded from the store will be stored in this folder
 		File downloadFolder = new File("downloads");
 		if (!downloadFolder.exists())
@@ -116,6 +155,222 @@ public class ClientMain {
 		}
 	}
 
+	public static void chainClient(int cport, int timeout, File uploadFolder) {
+		ChainClient client = new ChainClient(cport, timeout);
+		
+		try {
+			client.connect();
+			for (File file : uploadFolder.listFiles()) {
+				long start = System.currentTimeMillis();
+				try {
+					client.store(file);
+					System.out.println("Stored " + file.getName() + " through the chain in " + (System.currentTimeMillis() - start) + " ms");
+				} catch (Exception e) {
+					System.out.println("Error storing file " + file);
+					e.printStackTrace();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try { client.disconnect(); } catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	public static void resumableClient(int cport, int timeout, File downloadFolder, File uploadFolder) {
+		ResumableClient client = new ResumableClient(cport, timeout, 3);
+		downloadFolder.mkdir();
+		
+		try {
+			client.connect();
+			for (File file : uploadFolder.listFiles()) {
+				try {
+					client.store(file);
+					client.load(file.getName(), downloadFolder);
+					System.out.println("Stored and loaded " + file.getName());
+				} catch (Exception e) {
+					System.out.println("Error storing or loading file " + file);
+					e.printStackTrace();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try { client.disconnect(); } catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	public static void stripedClient(int cport, int timeout, File downloadFolder, File uploadFolder) {
+		Client client = new Client(cport, timeout, Logger.LoggingType.NO_LOG);
+		StripedClient striped = new StripedClient(cport, timeout);
+		downloadFolder.mkdir();
+		
+		try {
+			client.connect();
+			striped.connect();
+			for (File file : uploadFolder.listFiles()) {
+				try {
+					client.store(file);
+					long start = System.currentTimeMillis();
+					client.load(file.getName(), downloadFolder);
+					long plain = System.currentTimeMillis() - start;
+					new File(downloadFolder, file.getName()).delete();
+					start = System.currentTimeMillis();
+					striped.load(file.getName(), downloadFolder);
+					System.out.println("Loaded " + file.getName() + " in " + plain + " ms, striped in " + (System.currentTimeMillis() - start) + " ms");
+				} catch (Exception e) {
+					System.out.println("Error storing or loading file " + file);
+					e.printStackTrace();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try { client.disconnect(); } catch(Exception e) { e.printStackTrace(); }
+			try { striped.disconnect(); } catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	public static void batchClient(int cport, int timeout, int count) {
+		File uploadFolder = new File("to_store_batch");
+		File downloadFolder = new File("downloads_batch");
+		uploadFolder.mkdir();
+		downloadFolder.mkdir();
+		BatchClient client = new BatchClient(cport, timeout);
+		int batchSize = 1000;
+		
+		try {
+			List<File> files = new ArrayList<>();
+			byte[] contents = new byte[1024];
+			for (int i = 0; i < count; i++) {
+				File file = new File(uploadFolder, "batch" + i);
+				contents[0] = (byte) i;
+				java.nio.file.Files.write(file.toPath(), contents);
+				files.add(file);
+			}
+			client.connect();
+			
+			long start = System.currentTimeMillis();
+			List<String> stored = new ArrayList<>();
+			for (int i = 0; i < count; i += batchSize)
+				stored.addAll(client.storeBatch(files.subList(i, Math.min(count, i + batchSize))));
+			long elapsed = Math.max(1, System.currentTimeMillis() - start);
+			System.out.println("Stored " + stored.size() + "/" + count + " files in " + elapsed + " ms, " + (1000L * stored.size() / elapsed) + " files/s");
+			
+			start = System.currentTimeMillis();
+			int loaded = 0;
+			for (int i = 0; i < stored.size(); i += batchSize)
+				loaded += client.loadBatch(stored.subList(i, Math.min(stored.size(), i + batchSize)), downloadFolder).size();
+			elapsed = Math.max(1, System.currentTimeMillis() - start);
+			System.out.println("Loaded " + loaded + " files in " + elapsed + " ms, " + (1000L * loaded / elapsed) + " files/s");
+			
+			start = System.currentTimeMillis();
+			int removed = 0;
+			for (int i = 0; i < stored.size(); i += batchSize)
+				removed += client.removeBatch(stored.subList(i, Math.min(stored.size(), i + batchSize))).size();
+			elapsed = Math.max(1, System.currentTimeMillis() - start);
+			System.out.println("Removed " + removed + " files in " + elapsed + " ms, " + (1000L * removed / elapsed) + " files/s");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try { client.disconnect(); } catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	public static void pipelinedClient(int cport, int timeout, int count) {
+		File uploadFolder = new File("to_store_pipelined");
+		File downloadFolder = new File("downloads_pipelined");
+		uploadFolder.mkdir();
+		downloadFolder.mkdir();
+		PipelinedClient client = new PipelinedClient(cport, timeout, 64);
+		
+		try {
+			List<File> files = new ArrayList<>();
+			byte[] contents = new byte[1024];
+			for (int i = 0; i < count; i++) {
+				File file = new File(uploadFolder, "pipelined" + i);
+				contents[0] = (byte) i;
+				java.nio.file.Files.write(file.toPath(), contents);
+				files.add(file);
+			}
+			client.connect();
+			
+			long start = System.currentTimeMillis();
+			List<CompletableFuture<Void>> operations = new ArrayList<>();
+			for (File file : files)
+				operations.add(client.store(file));
+			// a LIST sent behind the STOREs is answered without waiting for them
+			try {
+				System.out.println("Listed " + client.list().join().size() + " files while storing");
+			} catch (CompletionException e) {
+				System.out.println("List failed: " + e.getCause());
+			}
+			int stored = PipelinedClient.awaitAll(operations);
+			long elapsed = Math.max(1, System.currentTimeMillis() - start);
+			System.out.println("Stored " + stored + "/" + count + " files in " + elapsed + " ms, " + (1000L * stored / elapsed) + " files/s");
+			
+			start = System.currentTimeMillis();
+			operations.clear();
+			for (File file : files)
+				operations.add(client.load(file.getName(), downloadFolder));
+			int loaded = PipelinedClient.awaitAll(operations);
+			elapsed = Math.max(1, System.currentTimeMillis() - start);
+			System.out.println("Loaded " + loaded + " files in " + elapsed + " ms, " + (1000L * loaded / elapsed) + " files/s");
+			
+			start = System.currentTimeMillis();
+			operations.clear();
+			for (File file : files)
+				operations.add(client.remove(file.getName()));
+			int removed = PipelinedClient.awaitAll(operations);
+			elapsed = Math.max(1, System.currentTimeMillis() - start);
+			System.out.println("Removed " + removed + " files in " + elapsed + " ms, " + (1000L * removed / elapsed) + " files/s");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try { client.disconnect(); } catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	public static void loadTestClient(int cport, int timeout, int connections) {
+		List<Client> clients = new ArrayList<>();
+		
+		try {
+			// open every connection first, so that the controller holds all of them at the same time
+			for (int i = 0; i < connections; i++) {
+				Client client = new Client(cport, timeout, Logger.LoggingType.NO_LOG);
+				client.connect();
+				clients.add(client);
+			}
+			System.out.println(connections + " connections open");
+			
+			AtomicInteger served = new AtomicInteger();
+			ExecutorService pool = Executors.newFixedThreadPool(64);
+			long start = System.currentTimeMillis();
+			for (Client client : clients) {
+				pool.execute(() -> {
+					try {
+						client.list();
+						served.incrementAndGet();
+					} catch (NotEnoughDstoresException e) {
+						served.incrementAndGet();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(timeout + 60000L, TimeUnit.MILLISECONDS);
+			System.out.println(served.get() + "/" + connections + " connections served in " + (System.currentTimeMillis() - start) + " ms");
+			
+		} catch (Exception e) {
+			System.out.println("Load test stopped after " + clients.size() + " connections");
+			e.printStackTrace();
+		} finally {
+			for (Client client : clients)
+				try { client.disconnect(); } catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+
 	public static String[] list(Client client) throws IOException, NotEnoughDstoresException {
 		System.out.println("Retrieving list of files...");
 		String list[] = client.list();
@@ -0,0 +1,277 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Client keeping many operations in flight on one Controller connection: every command is sent as
+ * REQUEST id command, the Controller puts the same prefix on each reply, and a reader thread hands the
+ * replies to the operation they belong to in whatever order they arrive
+ */
+public class PipelinedClient {
+
+	// not part of the Protocol class shipped in client.jar
+	public static final String REQUEST_TOKEN = "REQUEST";
+
+	private final int cport;
+	private final int timeout;
+	private final Semaphore window;
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final Map<Integer, Request> requests = new ConcurrentHashMap<>();
+	private final ExecutorService transfers = Executors.newFixedThreadPool(16);
+	private Socket controller;
+	private PrintWriter out;
+
+	/**
+	 * Replies expected for one request: STORE gets STORE_TO then STORE_COMPLETE, the others a single reply
+	 */
+	private static class Request {
+		final int id;
+		final CompletableFuture<String[]> first = new CompletableFuture<>();
+		final CompletableFuture<String[]> second;
+
+		Request(int id, boolean twoReplies) {
+			this.id = id;
+			second = twoReplies ? new CompletableFuture<>() : null;
+		}
+
+		/**
+		 * @return true once the request got all of its replies
+		 */
+		boolean reply(String[] fields) {
+			if (!first.isDone()) {
+				first.complete(fields);
+				return second == null || fields[0].startsWith("ERROR");
+			}
+			second.complete(fields);
+			return true;
+		}
+
+		void fail(IOException e) {
+			first.completeExceptionally(e);
+			if (second != null)
+				second.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * @param cport Controller port
+	 * @param timeout Timeout of every reply of the Controller and every Dstore read, in milliseconds
+	 * @param window Operations in flight at most, so that uploads start before the Controller gives up on their STORE
+	 */
+	public PipelinedClient(int cport, int timeout, int window) {
+		this.cport = cport;
+		this.timeout = timeout;
+		this.window = new Semaphore(window);
+	}
+
+	public void connect() throws IOException {
+		controller = new Socket("localhost", cport);
+		controller.setTcpNoDelay(true);
+		out = new PrintWriter(controller.getOutputStream(), true);
+		BufferedReader in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+		Thread reader = new Thread(() -> read(in), "pipelined-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public void disconnect() throws IOException {
+		transfers.shutdown();
+		if (controller != null)
+			controller.close();
+	}
+
+	/**
+	 * Dispatch the replies of the Controller until the connection closes, then fail what is still waiting
+	 */
+	private void read(BufferedReader in) {
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ");
+				if (fields.length < 3 || !fields[0].equals(REQUEST_TOKEN)) {
+					System.out.println("Reply without a request id: " + line);
+					continue;
+				}
+				int id = Integer.parseInt(fields[1]);
+				Request request = requests.get(id);
+				if (request != null && request.reply(Arrays.copyOfRange(fields, 2, fields.length)))
+					requests.remove(id);
+			}
+		} catch (IOException e) {
+			if (!controller.isClosed())
+				System.out.println("Connection to the Controller lost: " + e.getMessage());
+		}
+		IOException closed = new IOException("Connection closed by the Controller");
+		for (Request request : requests.values())
+			request.fail(closed);
+		requests.clear();
+	}
+
+	private Request send(String command, boolean twoReplies) {
+		int id = nextId.incrementAndGet();
+		Request request = new Request(id, twoReplies);
+		requests.put(id, request);
+		synchronized (out) {
+			out.println(REQUEST_TOKEN + " " + id + " " + command);
+		}
+		return request;
+	}
+
+	/**
+	 * Wait for one reply of a request for the timeout at most. The Controller sends nothing when an operation
+	 * times out on its side, so the request is forgotten here too
+	 */
+	private CompletableFuture<String[]> reply(Request request, CompletableFuture<String[]> reply) {
+		return reply.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((fields, failure) -> {
+			if (failure != null)
+				requests.remove(request.id);
+		});
+	}
+
+	private CompletableFuture<String[]> first(Request request) {
+		return reply(request, request.first);
+	}
+
+	private static String[] expect(String[] reply, String token, String fileName) {
+		if (reply[0].equals("ERROR_NOT_ENOUGH_DSTORES"))
+			throw new RuntimeException(new NotEnoughDstoresException());
+		if (reply[0].equals("ERROR_FILE_ALREADY_EXISTS"))
+			throw new RuntimeException(new FileAlreadyExistsException(fileName));
+		if (reply[0].equals("ERROR_FILE_DOES_NOT_EXIST"))
+			throw new RuntimeException(new FileDoesNotExistException(fileName));
+		if (!reply[0].equals(token))
+			throw new RuntimeException(new IOException("Unexpected message: " + String.join(" ", reply)));
+		return reply;
+	}
+
+	public CompletableFuture<List<String>> list() {
+		return inWindow(() -> first(send("LIST", false))
+				.thenApply(reply -> Arrays.asList(expect(reply, "LIST", null)).subList(1, reply.length)));
+	}
+
+	/**
+	 * Start an operation once the window has room, and give the room back when it completes
+	 */
+	private <T> CompletableFuture<T> inWindow(Supplier<CompletableFuture<T>> operation) {
+		window.acquireUninterruptibly();
+		CompletableFuture<T> started = operation.get();
+		started.whenComplete((result, failure) -> window.release());
+		return started;
+	}
+
+	/**
+	 * Store a file, uploading it to its Dstores as soon as STORE_TO arrives
+	 */
+	public CompletableFuture<Void> store(File file) {
+		String fileName = file.getName();
+		return inWindow(() -> {
+			Request request = send("STORE " + fileName + " " + file.length(), true);
+			return first(request)
+					.thenAcceptAsync(reply -> {
+					String[] ports = expect(reply, "STORE_TO", fileName);
+					for (int i = 1; i < ports.length; i++)
+						upload(file, Integer.parseInt(ports[i]));
+				}, transfers)
+					.thenCompose(uploaded -> reply(request, request.second))
+					.thenAccept(reply -> expect(reply, "STORE_COMPLETE", fileName));
+		});
+	}
+
+	private void upload(File file, int port) {
+		try (SocketChannel dstore = SocketChannel.open(new InetSocketAddress("localhost", port));
+				FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			dstore.socket().setSoTimeout(timeout);
+			new PrintWriter(dstore.socket().getOutputStream(), true).println("STORE " + file.getName() + " " + file.length());
+			if (!"ACK".equals(new BufferedReader(new InputStreamReader(dstore.socket().getInputStream())).readLine()))
+				throw new IOException("Dstore " + port + " did not acknowledge STORE of " + file.getName());
+			long position = 0;
+			while (position < file.length())
+				position += source.transferTo(position, file.length() - position, dstore);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Load a file into a folder, sending RELOAD as a new request while Dstores fail
+	 */
+	public CompletableFuture<Void> load(String fileName, File downloadFolder) {
+		return inWindow(() -> fetch("LOAD", fileName, downloadFolder));
+	}
+
+	private CompletableFuture<Void> fetch(String command, String fileName, File downloadFolder) {
+		return first(send(command + " " + fileName, false))
+				.thenApplyAsync(reply -> {
+					if (reply[0].equals("ERROR_LOAD"))
+						throw new RuntimeException(new IOException("Load of " + fileName + " failed on every Dstore"));
+					String[] loadFrom = expect(reply, "LOAD_FROM", fileName);
+					return download(Integer.parseInt(loadFrom[1]), fileName, Long.parseLong(loadFrom[2]), downloadFolder);
+				}, transfers)
+				.thenCompose(loaded -> loaded ? CompletableFuture.<Void>completedFuture(null) : fetch("RELOAD", fileName, downloadFolder));
+	}
+
+	private boolean download(int port, String fileName, long fileSize, File downloadFolder) {
+		File file = new File(downloadFolder, fileName);
+		try (SocketChannel dstore = SocketChannel.open(new InetSocketAddress("localhost", port));
+				FileChannel target = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			dstore.socket().setSoTimeout(timeout);
+			new PrintWriter(dstore.socket().getOutputStream(), true).println("LOAD_DATA " + fileName);
+			ReadableByteChannel source = Channels.newChannel(dstore.socket().getInputStream());
+			long position = 0;
+			while (position < fileSize) {
+				long transferred = target.transferFrom(source, position, fileSize - position);
+				if (transferred <= 0)
+					break;
+				position += transferred;
+			}
+			return position == fileSize;
+		} catch (IOException e) {
+			System.out.println("Load of " + fileName + " from " + port + " failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	public CompletableFuture<Void> remove(String fileName) {
+		return inWindow(() -> first(send("REMOVE " + fileName, false))
+				.thenAccept(reply -> expect(reply, "REMOVE_COMPLETE", fileName)));
+	}
+
+	/**
+	 * Wait for every operation, counting those that succeeded
+	 */
+	public static int awaitAll(List<CompletableFuture<Void>> operations) {
+		int succeeded = 0;
+		for (CompletableFuture<Void> operation : new ArrayList<>(operations)) {
+			try {
+				operation.join();
+				succeeded++;
+			} catch (RuntimeException e) {
+				Throwable cause = e.getCause() != null && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+				System.out.println("Operation failed: " + cause);
+			}
+		}
+		return succeeded;
+	}
+
+}
@@ -0,0 +1,177 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Client whose transfers survive dropped connections: uploads go through STORE_RESUME, so a retry only sends
+ * the chunks a Dstore has not committed yet, and downloads use ranged LOAD_DATA, so RELOAD carries on from
+ * the bytes already received instead of starting over
+ */
+public class ResumableClient {
+
+	// not part of the Protocol class shipped in client.jar
+	public static final String STORE_RESUME_TOKEN = "STORE_RESUME";
+
+	private final int cport;
+	private final int timeout;
+	private final int attempts;
+	private Socket controller;
+	private BufferedReader in;
+	private PrintWriter out;
+
+	/**
+	 * @param cport Controller port
+	 * @param timeout Timeout of every read, in milliseconds
+	 * @param attempts Connections tried per Dstore for an upload
+	 */
+	public ResumableClient(int cport, int timeout, int attempts) {
+		this.cport = cport;
+		this.timeout = timeout;
+		this.attempts = attempts;
+	}
+
+	public void connect() throws IOException {
+		controller = new Socket("localhost", cport);
+		controller.setSoTimeout(timeout);
+		in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+		out = new PrintWriter(controller.getOutputStream(), true);
+	}
+
+	public void disconnect() throws IOException {
+		if (controller != null)
+			controller.close();
+	}
+
+	public void store(File file) throws IOException, NotEnoughDstoresException, FileAlreadyExistsException {
+		String fileName = file.getName();
+		long fileSize = file.length();
+
+		out.println("STORE " + fileName + " " + fileSize);
+		String reply = in.readLine();
+		if (reply == null)
+			throw new IOException("Connection closed by the Controller");
+		if (reply.equals("ERROR_NOT_ENOUGH_DSTORES"))
+			throw new NotEnoughDstoresException();
+		if (reply.equals("ERROR_FILE_ALREADY_EXISTS"))
+			throw new FileAlreadyExistsException(fileName);
+
+		String[] ports = reply.split(" ");
+		if (!ports[0].equals("STORE_TO"))
+			throw new IOException("Unexpected message: " + reply);
+
+		String checksum = checksum(file);
+		for (int i = 1; i < ports.length; i++)
+			upload(file, checksum, Integer.parseInt(ports[i]));
+
+		reply = in.readLine();
+		if (!"STORE_COMPLETE".equals(reply))
+			throw new IOException("Store of " + fileName + " not completed: " + reply);
+	}
+
+	/**
+	 * CRC32C of a file in hex, which ties the chunks a Dstore keeps to this content
+	 */
+	private static String checksum(File file) throws IOException {
+		CRC32C crc = new CRC32C();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (source.read(buffer) != -1) {
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Upload a file to one Dstore, reconnecting after a failure and sending only what it has not committed
+	 */
+	private void upload(File file, String checksum, int port) throws IOException {
+		IOException failure = null;
+		for (int attempt = 0; attempt < attempts; attempt++) {
+			try (SocketChannel dstore = SocketChannel.open(new InetSocketAddress("localhost", port));
+					FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				dstore.socket().setSoTimeout(timeout);
+				PrintWriter dstoreOut = new PrintWriter(dstore.socket().getOutputStream(), true);
+				BufferedReader dstoreIn = new BufferedReader(new InputStreamReader(dstore.socket().getInputStream()));
+				dstoreOut.println(STORE_RESUME_TOKEN + " " + file.getName() + " " + file.length() + " " + checksum);
+
+				String[] ack = String.valueOf(dstoreIn.readLine()).split(" ");
+				if (!ack[0].equals("ACK") || ack.length != 2)
+					throw new IOException("Dstore " + port + " did not acknowledge STORE_RESUME: " + String.join(" ", ack));
+
+				long position = Long.parseLong(ack[1]);
+				if (position > 0)
+					System.out.println("Resuming " + file.getName() + " on " + port + " from byte " + position);
+				while (position < file.length())
+					position += source.transferTo(position, file.length() - position, dstore);
+				return;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	public void load(String fileName, File downloadFolder) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+		out.println("LOAD " + fileName);
+		File partial = new File(downloadFolder, fileName + ".part");
+		long position = 0;
+
+		try (FileChannel target = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (true) {
+				String reply = in.readLine();
+				if (reply == null)
+					throw new IOException("Connection closed by the Controller");
+				if (reply.equals("ERROR_NOT_ENOUGH_DSTORES"))
+					throw new NotEnoughDstoresException();
+				if (reply.equals("ERROR_FILE_DOES_NOT_EXIST"))
+					throw new FileDoesNotExistException(fileName);
+				if (reply.equals("ERROR_LOAD"))
+					throw new IOException("Load of " + fileName + " failed on every Dstore after " + position + " bytes");
+
+				String[] loadFrom = reply.split(" ");
+				if (!loadFrom[0].equals("LOAD_FROM") || loadFrom.length != 3)
+					throw new IOException("Unexpected message: " + reply);
+				int port = Integer.parseInt(loadFrom[1]);
+				long fileSize = Long.parseLong(loadFrom[2]);
+
+				// carry on from where the previous Dstore stopped
+				try (SocketChannel dstore = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+					dstore.socket().setSoTimeout(timeout);
+					new PrintWriter(dstore.socket().getOutputStream(), true)
+							.println("LOAD_DATA " + fileName + " " + position + " " + (fileSize - position));
+					ReadableByteChannel source = Channels.newChannel(dstore.socket().getInputStream());
+					while (position < fileSize) {
+						long transferred = target.transferFrom(source, position, fileSize - position);
+						if (transferred <= 0)
+							break;
+						position += transferred;
+					}
+				} catch (IOException e) {
+					System.out.println("Load of " + fileName + " from " + port + " stopped at byte " + position + ": " + e.getMessage());
+				}
+
+				if (position == fileSize)
+					break;
+				out.println("RELOAD " + fileName);
+			}
+		}
+		Files.move(partial.toPath(), new File(downloadFolder, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
@@ -0,0 +1,180 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client loading large files from every replica at once: LOAD_STRIPED returns all the Dstores holding a file,
+ * each of them serves one byte range through a ranged LOAD_DATA, and the ranges are written in place into the
+ * download. A range that fails is split again over the Dstores that served theirs
+ */
+public class StripedClient {
+
+	// not part of the Protocol class shipped in client.jar
+	public static final String LOAD_STRIPED_TOKEN = "LOAD_STRIPED";
+	public static final String LOAD_FROM_ALL_TOKEN = "LOAD_FROM_ALL";
+
+	private final int cport;
+	private final int timeout;
+	private final ExecutorService readers = Executors.newCachedThreadPool();
+	private Socket controller;
+	private BufferedReader in;
+	private PrintWriter out;
+
+	/**
+	 * Byte range of the file read from one Dstore, with the bytes received so far
+	 */
+	private static class Stripe {
+		final int port;
+		final long offset;
+		final long length;
+		long received = 0;
+
+		Stripe(int port, long offset, long length) {
+			this.port = port;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	public StripedClient(int cport, int timeout) {
+		this.cport = cport;
+		this.timeout = timeout;
+	}
+
+	public void connect() throws IOException {
+		controller = new Socket("localhost", cport);
+		controller.setSoTimeout(timeout);
+		in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+		out = new PrintWriter(controller.getOutputStream(), true);
+	}
+
+	public void disconnect() throws IOException {
+		readers.shutdown();
+		if (controller != null)
+			controller.close();
+	}
+
+	public void load(String fileName, File downloadFolder) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+		out.println(LOAD_STRIPED_TOKEN + " " + fileName);
+		String reply = in.readLine();
+		if (reply == null)
+			throw new IOException("Connection closed by the Controller");
+		if (reply.equals("ERROR_NOT_ENOUGH_DSTORES"))
+			throw new NotEnoughDstoresException();
+		if (reply.equals("ERROR_FILE_DOES_NOT_EXIST"))
+			throw new FileDoesNotExistException(fileName);
+
+		String[] loadFrom = reply.split(" ");
+		if (!loadFrom[0].equals(LOAD_FROM_ALL_TOKEN) || loadFrom.length < 3)
+			throw new IOException("Unexpected message: " + reply);
+		long fileSize = Long.parseLong(loadFrom[1]);
+		List<Integer> ports = new ArrayList<>();
+		for (int i = 2; i < loadFrom.length; i++)
+			ports.add(Integer.parseInt(loadFrom[i]));
+
+		File partial = new File(downloadFolder, fileName + ".part");
+		try (FileChannel target = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// positional transfers never write past the end of the file, so give it its full size first
+			if (fileSize > 0)
+				target.write(ByteBuffer.allocate(1), fileSize - 1);
+
+			// one range per Dstore, the least loaded one first takes the remainder of the division
+			List<Stripe> stripes = split(0, fileSize, ports);
+			while (true) {
+				List<Stripe> failed = fetch(fileName, target, stripes);
+				if (failed.isEmpty())
+					break;
+
+				for (Stripe stripe : failed)
+					ports.remove(Integer.valueOf(stripe.port));
+				if (ports.isEmpty())
+					throw new IOException("Load of " + fileName + " failed on every Dstore");
+
+				stripes = new ArrayList<>();
+				for (Stripe stripe : failed)
+					stripes.addAll(split(stripe.offset + stripe.received, stripe.length - stripe.received, ports));
+			}
+		}
+		Files.move(partial.toPath(), new File(downloadFolder, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Divide a range of the file over the given Dstores
+	 */
+	private static List<Stripe> split(long offset, long length, List<Integer> ports) {
+		List<Stripe> stripes = new ArrayList<>();
+		long share = length / ports.size();
+		long position = offset;
+		for (int i = 0; i < ports.size(); i++) {
+			long size = i == 0 ? length - share * (ports.size() - 1) : share;
+			stripes.add(new Stripe(ports.get(i), position, size));
+			position += size;
+		}
+		return stripes;
+	}
+
+	/**
+	 * Read every stripe in parallel into the target file
+	 * @return the stripes that were not read completely
+	 */
+	private List<Stripe> fetch(String fileName, FileChannel target, List<Stripe> stripes) throws IOException {
+		List<Future<Boolean>> reads = new ArrayList<>();
+		for (Stripe stripe : stripes)
+			reads.add(readers.submit(() -> read(fileName, target, stripe)));
+
+		List<Stripe> failed = new ArrayList<>();
+		for (int i = 0; i < stripes.size(); i++) {
+			try {
+				if (!reads.get(i).get())
+					failed.add(stripes.get(i));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while loading " + fileName);
+			} catch (ExecutionException e) {
+				failed.add(stripes.get(i));
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Read one stripe with a ranged LOAD_DATA, writing it at its offset
+	 * @return true if the whole range arrived
+	 */
+	private boolean read(String fileName, FileChannel target, Stripe stripe) {
+		try (SocketChannel dstore = SocketChannel.open(new InetSocketAddress("localhost", stripe.port))) {
+			dstore.socket().setSoTimeout(timeout);
+			new PrintWriter(dstore.socket().getOutputStream(), true)
+					.println("LOAD_DATA " + fileName + " " + stripe.offset + " " + stripe.length);
+			ReadableByteChannel source = Channels.newChannel(dstore.socket().getInputStream());
+			while (stripe.received < stripe.length) {
+				long transferred = target.transferFrom(source, stripe.offset + stripe.received, stripe.length - stripe.received);
+				if (transferred <= 0)
+					break;
+				stripe.received += transferred;
+			}
+		} catch (IOException e) {
+			System.out.println("Stripe of " + fileName + " from " + stripe.port + " stopped at byte " + (stripe.offset + stripe.received) + ": " + e.getMessage());
+		}
+		return stripe.received == stripe.length;
+	}
+
+}
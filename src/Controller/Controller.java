@@ -1,15 +1,47 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32C;
 
 
 /**
@@ -24,31 +56,38 @@ public class Controller {
     }
 
     public static final Logger logger = Logger.getLogger(Controller.class.toString());
+    private static final int ACCEPT_BACKLOG = 1024;
     private Client currentClient = null;
     private final int cport;
     private final int r;
     private final int timeout;
     private final int rebalanced_period;
+    private final String frontEnd;
+    private String metadataFolder = null;
+    private MetadataJournal journal = null;
     private AtomicBoolean rebalancing = new AtomicBoolean(false);
     private AtomicInteger countDStore = new AtomicInteger(0); // count number of connected dstores
     private AtomicBoolean dStoreReady = new AtomicBoolean(false);
-    private ConcurrentHashMap<String, ArrayList<Integer>> validLoadPorts = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, ArrayList<Integer>> loadChoosePort = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, FileState> fileStateIndex = new ConcurrentHashMap<>(); //Index of file with state
-    private ConcurrentHashMap<String, Integer> fileSizeIndex = new ConcurrentHashMap<>(); //Index of stored file with filesize
+    private ConcurrentHashMap<String, FileRecord> files = new ConcurrentHashMap<>(); //Index of file with state, size and replicas
     private ConcurrentHashMap<Integer, DStore> dStoreConnections = new ConcurrentHashMap<>(); //Bind client socket with dstore port
-    private ConcurrentHashMap<DStore, Double> storeFactor = new ConcurrentHashMap<>(); //Sort priority of store
-    private ConcurrentHashMap<String, AtomicInteger> ackReceive = new ConcurrentHashMap<>(); //Count received acks for each file
-    private ConcurrentHashMap<String, AtomicInteger> ackRemove = new ConcurrentHashMap<>();
+    private Placement placement = new PlacementIndex(); //Where new replicas go
+    private final LoadTracker loadTracker = new LoadTracker(); //Read load of each dstore
+    private final ReplicaIndex replicaIndex = new ReplicaIndex(); //Files of each DStore, the other way round from the file records
+    private AtomicInteger operationsInFlight = new AtomicInteger(0); //STOREs and REMOVEs waiting for acks
     private ConcurrentHashMap<Integer, Integer> dStoreLoad = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<Integer, AtomicInteger> dStoreNumbFiles = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<Integer, ArrayList<String>> dStoreFiles = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, AtomicInteger> rebalanceAdd = new ConcurrentHashMap<>();
-    private AtomicInteger ackRebalance = new AtomicInteger(0);
-    private List<Integer> listACK = Collections.synchronizedList(new ArrayList<Integer>());
-    private Object storeAckLock = new Object();
-    private Object removeAckLock = new Object();
-    private Object generalLock = new Object();
+    private ConcurrentHashMap<Integer, ArrayList<String>> dStoreFiles = new ConcurrentHashMap<>(); //LIST of each DStore in the current rebalance
+    private volatile CountDownLatch ackRebalance = new CountDownLatch(0); //Pending REBALANCE_COMPLETE of current rebalance
+    private final Map<String, Set<Integer>> failedCopies = new ConcurrentHashMap<>(); //Targets a copy of the current rebalance did not reach
+    private final Map<String, Set<Integer>> keptReplicas = new ConcurrentHashMap<>(); //Sources keeping a file because of such a copy
+    private volatile CountDownLatch listACK = new CountDownLatch(0); //Pending LIST replies of current rebalance
+    private RebalanceService rebalanceService;
+    private final FailureDetector failureDetector = new FailureDetector(); //Silence of DStores sending heartbeats
+    private final RepairQueue repairQueue = new RepairQueue(); //Files that lost a replica
+    private ExecutorService workers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private List<Runnable> deferredOperations = new ArrayList<>(); //Operations waiting for the running rebalance
+    private ReentrantLock rebalanceLock = new ReentrantLock();
+    private ReentrantLock operationLock = new ReentrantLock();
+    private Condition operationDone = operationLock.newCondition();
 
 
     /**
@@ -58,10 +97,22 @@ public class Controller {
      * @param rebalanced_period Rebalance period
      */
     public Controller(int cport, int r, int timeout, int rebalanced_period) {
+        this(cport, r, timeout, rebalanced_period, "nio");
+    }
+
+    /**
+     * @param cport Controller Port
+     * @param r R factor
+     * @param timeout Timeout period
+     * @param rebalanced_period Rebalance period
+     * @param frontEnd "nio" for the selector front end, "thread" or "virtual" for one platform or virtual thread per connection
+     */
+    public Controller(int cport, int r, int timeout, int rebalanced_period, String frontEnd) {
         this.cport = cport;
         this.r = r;
         this.timeout = timeout;
         this.rebalanced_period = rebalanced_period;
+        this.frontEnd = frontEnd;
 
 
         //Check Duplication
@@ -81,6 +132,31 @@ public class Controller {
     }
 
 
+    /**
+     * Persist the file index in a folder, and recover it from there on start
+     * @param metadataFolder Folder holding the journal and snapshot
+     */
+    public void setMetadataFolder(String metadataFolder) {
+        this.metadataFolder = metadataFolder;
+    }
+
+    /**
+     * Choose how new replicas are placed, before any DStore joins
+     * @param mode "load" for the least loaded DStores, "ring" for a consistent-hash ring
+     */
+    public void setPlacement(String mode) {
+        switch (mode) {
+            case "load":
+                placement = new PlacementIndex();
+                break;
+            case "ring":
+                placement = new HashRing();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown placement " + mode);
+        }
+    }
+
     /**
      * Method to start the controller
      */
@@ -88,16 +164,38 @@ public class Controller {
         try {
             System.out.println("DStore server starting...");
 
-            ServerSocket serverSocket = new ServerSocket(cport);
+            if (metadataFolder != null) {
+                journal = new MetadataJournal(metadataFolder);
+                journal.recover();
+            }
+
+            if (frontEnd.equals("nio")) {
+                NioFrontEnd nioFrontEnd = new NioFrontEnd(cport);
+                System.out.println("Waiting for Connection");
+
+                rebalanceService = new RebalanceService(rebalanced_period);
+                rebalanceService.start();
+                failureDetector.start();
+                repairQueue.start();
+
+                nioFrontEnd.serve();
+                return;
+            }
+
+            ExecutorService connectionThreads = frontEnd.equals("virtual") ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+            ServerSocket serverSocket = new ServerSocket(cport, ACCEPT_BACKLOG);
             System.out.println("Waiting for Connection");
 
-            new RebalanceThread(rebalanced_period).start();
+            rebalanceService = new RebalanceService(rebalanced_period);
+            rebalanceService.start();
+            failureDetector.start();
+            repairQueue.start();
 
             for (;;) {
                 try {
                     Socket client = serverSocket.accept();
                     logger.info("Client: " + serverSocket.getInetAddress().getLocalHost() + "-" + client.getPort() + " has connected to DS server.");
-                    new SocketThread(client, r).start();
+                    connectionThreads.execute(new SocketThread(client));
 
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -109,86 +207,138 @@ public class Controller {
     }
 
     /**
-     * Method to delete a port from valid loading port
-     * @param port The port to be deleted
+     * Mark a file as stored, through the journal when metadata is persisted
+     * @param fileName File stored
+     * @param record Index entry of the file
+     * @param fileSize Size of the file
      */
-    private synchronized void deletePortFromValidLoad(Integer port) {
-        for(String fileName : validLoadPorts.keySet()) {
-            if (validLoadPorts.get(fileName).contains(port)) {
-                validLoadPorts.get(fileName).remove(port);
-            }
+    private void indexStore(String fileName, FileRecord record, Long fileSize) {
+        Runnable apply = () -> {
+            record.setSize(fileSize);
+            record.transition(FileState.STORE_IN_PROGRESS, FileState.STORE_COMPLETE);
+        };
+        if (journal != null) {
+            journal.recordStore(fileName, fileSize, apply);
+        } else {
+            apply.run();
         }
-        System.out.println("[Controller] Port " + port + " deleted from valid load port list!");
     }
 
     /**
-     * Choose a port to be load from a list
-     * @param fileName File to be loaded
-     * @return the chosen port
+     * Drop a removed file from the index, through the journal when metadata is persisted
+     * @param fileName File removed
      */
-    private synchronized Integer chooseLoadPort(String fileName) {
-        var port = loadChoosePort.get(fileName).get(0);
-        loadChoosePort.get(fileName).remove(0);
-        return port;
+    private void indexRemove(String fileName) {
+        Runnable apply = () -> files.remove(fileName);
+        if (journal != null) {
+            journal.recordRemove(fileName, apply);
+        } else {
+            apply.run();
+        }
     }
 
+    /**
+     * @param fileName File to be checked
+     * @return the size of the file if it is stored, including while it is being removed, otherwise null
+     */
+    private Long durableSize(String fileName) {
+        FileRecord record = files.get(fileName);
+        return record != null && record.isDurable() ? record.getSize() : null;
+    }
 
     /**
-     * Update Store Factor to balance the files for dstore to store
+     * Executor starting one virtual thread per task. Falls back to platform threads before Java 21
+     * @return the executor
      */
-    private void updateStoreFactor() {
-        storeFactor.clear();
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.info("[System Warning] Virtual threads need Java 21, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
 
-        for(Integer i : dStoreConnections.keySet()) {
-            DStore dStore = dStoreConnections.get(i);
-            Integer fileCount = 0;
+    /**
+     * Method to delete a port from valid loading port
+     * @param port The port to be deleted
+     * @return the files that had a replica there
+     */
+    private List<String> deletePortFromValidLoad(Integer port) {
+        List<String> held = replicaIndex.dropPort(port);
+        System.out.println("[Controller] Port " + port + " deleted from valid load port list!");
+        return held;
+    }
 
-            for(ArrayList<Integer> iSet : validLoadPorts.values()) {
-                if(iSet.contains(i)) {
-                    fileCount++;
-                }
-            }
+    /**
+     * Forget a DStore whose connection closed or that stopped sending heartbeats, and queue the repair of the
+     * files it held. Done once per connection, by whichever notices first
+     * @param port DStore port
+     * @param dStore Connection of the DStore
+     */
+    private void dropDStore(Integer port, DStore dStore) {
+        if (!dStoreConnections.remove(port, dStore)) {
+            return;
+        }
+        failureDetector.forget(port);
+        List<String> held = deletePortFromValidLoad(port);
+        placement.leave(port);
+        loadTracker.forget(port);
+        countDStore.decrementAndGet();
+        if (countDStore.get() < r) {
+            dStoreReady.set(false);
+        }
+        logger.info("[Controller] Current connected DStore: " + countDStore.get() + "/" + r);
+        repairQueue.enqueue(held);
+    }
 
-            storeFactor.put(dStore, (Double.valueOf(this.r) * Double.valueOf(fileCount)) / Double.valueOf(dStoreConnections.keySet().size()));
+    /**
+     * Record a replica of a file on a DStore
+     * @param fileName File replicated
+     * @param record Index entry of the file
+     * @param port DStore holding the replica
+     */
+    private void addReplica(String fileName, FileRecord record, Integer port) {
+        if (replicaIndex.add(fileName, record, port)) {
+            placement.adjust(port, 1);
         }
-        System.out.println("Current Store Factor: " + storeFactor);
     }
 
     /**
-     * Choose DStores according to store factor(RF/N) sorted from small to large.
-     * @param r_factor
-     * @return a list of ports hold the file
+     * Forget a replica of a file on a DStore
+     * @param record Index entry of the file
+     * @param port DStore holding the replica
      */
-    private synchronized List<Integer> chooseStorePorts(Integer r_factor) {
-        ArrayList<Integer> dStores = new ArrayList<>();
-        storeFactor.entrySet().stream().sorted(Map.Entry.comparingByValue()).forEach(dStoreDoubleEntry -> {
-            dStores.add(dStoreDoubleEntry.getKey().getPort());
-        });
+    private void removeReplica(FileRecord record, Integer port) {
+        if (replicaIndex.remove(record, port)) {
+            placement.adjust(port, -1);
+        }
+    }
 
-        return dStores.subList(0,r_factor);
+    /**
+     * Forget every replica of a file
+     * @param record Index entry of the file
+     */
+    private void dropReplicas(FileRecord record) {
+        for (Integer port : replicaIndex.drop(record)) {
+            placement.adjust(port, -1);
+        }
     }
 
     /**
-     * Choose DStores according to store factor(RF/N) sorted from small to large.
-     * @param fileName File to be chosen
+     * Choose the DStores of a new file
+     * @param fileName File to be stored
      * @param r_factor
      * @return a list of ports hold the file
      */
-    private synchronized List<Integer> chooseStorePorts(String fileName, Integer r_factor) {
-        ArrayList<Integer> dStores = new ArrayList<>();
-        storeFactor.entrySet().stream().sorted(Map.Entry.comparingByValue()).forEach(dStoreDoubleEntry -> {
-            if(!validLoadPorts.get(fileName).contains(dStoreDoubleEntry.getKey().getPort())) {
-                dStores.add(dStoreDoubleEntry.getKey().getPort());
-            }
-        });
-
-        return dStores.subList(0,r_factor);
+    private List<Integer> chooseStorePorts(String fileName, Integer r_factor) {
+        return placement.choose(fileName, r_factor);
     }
 
     /**
      * Method to start rebalance operation
      */
-    public synchronized void rebalanceOperation() {
+    public void rebalanceOperation() {
 
         //DStores not enough
         if(dStoreConnections.keySet().size() < this.r) {
@@ -196,116 +346,242 @@ public class Controller {
             return;
         }
 
-        synchronized (generalLock) {
-            rebalancing.set(true);
-            while (ackRemove.size() != 0 || ackReceive.size()!=0) {
-                continue;
-            }
-        }
+        try {
+            beginRebalance();
+            awaitOperationsDrained();
 
-        logger.info("[System Info - Rebalance] Starting Rebalance");
+            logger.info("[System Info - Rebalance] Starting Rebalance");
 
-        //Send LIST To DStores
-        listACK.clear();
+            //Send LIST To DStores, only the replies of this round are planned from
+            dStoreFiles.clear();
+            listACK = new CountDownLatch(dStoreConnections.size());
 
-        for(Integer iport : dStoreConnections.keySet()) {
-            dStoreConnections.get(iport).sendDStoreMsg(Protocol.LIST_TOKEN);
-        }
+            for(Integer iport : dStoreConnections.keySet()) {
+                dStoreConnections.get(iport).sendDStoreMsg(Protocol.LIST_TOKEN, Collections.emptyList());
+            }
 
-        //Waiting for LIST
-        logger.info("[System Info - Rebalance] Waiting for List");
-        var startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() <= startTime + timeout) {// checks if file to store has completed acknowledgements
-            if (listACK.size() >= dStoreConnections.size()) {
+            //Waiting for LIST
+            logger.info("[System Info - Rebalance] Waiting for List");
+            if (listACK.await(timeout, TimeUnit.MILLISECONDS)) {
                 System.out.println("[System Info - Rebalance] Confirmed LIST from all");
-                break;
             }
+            logger.info("[System Info - Rebalance] Lists received");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
         }
-        logger.info("[System Info - Rebalance] Lists received");
 
-        for(String fileName : validLoadPorts.keySet()) {
-            if(validLoadPorts.get(fileName).size() < this.r) {
-                rebalanceAdd.put(fileName, new AtomicInteger(this.r - validLoadPorts.get(fileName).size()));
+        //Send REBALANCE To DStores
+        Map<Integer, List<String>> listed = new HashMap<>(dStoreFiles);
+        listed.keySet().retainAll(dStoreConnections.keySet());
+        RebalancePlan plan = new RebalancePlanner(r, placement.homes(r)).plan(listed, this::durableSize);
+        logger.info("[System Info - Rebalance] Plan: " + plan);
+
+        failedCopies.clear();
+        keptReplicas.clear();
+        ackRebalance = new CountDownLatch(listed.size());
+        for (Integer port : listed.keySet()) {
+            DStore dStore = dStoreConnections.get(port);
+            if (dStore != null) {
+                dStore.sendDStoreMsg(Protocol.REBALANCE_TOKEN, plan.fields(port));
+            } else {
+                ackRebalance.countDown();
             }
         }
-
-        //Send REBALANCE To DStores
-        sendRebalance();
-        startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() <= startTime + timeout) {
-            if (ackRebalance.get() >= dStoreConnections.keySet().size()) { // checks if file to store has completed acknowledgements
+        try {
+            if (ackRebalance.await(timeout, TimeUnit.MILLISECONDS)) {
+                applyPlan(plan);
                 logger.info("[System Info - Rebalance] Rebalance Successful");
-                break;
+            } else {
+                logger.info("[System Warning] Rebalance timeout, replicas are corrected by the next LIST");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-
-        ackRebalance.set(0);
     }
 
     /**
-     * Method to send rebalance command to each dstore
+     * Plan a rebalance from the replicas in the index, without asking the DStores or sending anything
+     * @return the plan
      */
-    private synchronized void sendRebalance() {
+    public RebalancePlan planRebalance() {
+        Map<Integer, List<String>> listed = new HashMap<>();
+        for (Integer port : dStoreConnections.keySet()) {
+            listed.put(port, replicaIndex.filesOn(port));
+        }
+        return new RebalancePlanner(r, placement.homes(r)).plan(listed, this::durableSize);
+    }
 
-        for (Integer port : dStoreConnections.keySet()) { // function for sorting the REBALANCE files_to_send files_to_remove
-            String files_to_send = "";
-            String files_to_remove = "";
-            Integer files_to_send_count = 0;
-            Integer files_to_remove_count = 0;
+    /**
+     * Move the replicas of the index to where a completed rebalance put them. Copies the DStores reported as
+     * failed are not added, and their sources keep the file, as the DStore does
+     * @param plan Rebalance completed by every DStore
+     */
+    private void applyPlan(RebalancePlan plan) {
+        plan.forEachCopy((fileName, port) -> {
+            FileRecord record = files.get(fileName);
+            if (record != null && !failedCopies.getOrDefault(fileName, Collections.emptySet()).contains(port)) {
+                addReplica(fileName, record, port);
+            }
+        });
+        plan.forEachRemoval((fileName, port) -> {
+            FileRecord record = files.get(fileName);
+            if (record != null && !keptReplicas.getOrDefault(fileName, Collections.emptySet()).contains(port)) {
+                removeReplica(record, port);
+            }
+        });
+    }
 
-            //Remove files not in list
-            for(String fileName : dStoreFiles.get(port)) {
-                if(fileSizeIndex.keySet().contains(fileName)) {
-                    files_to_remove += " " + fileName;
-                    files_to_remove_count ++;
-                    dStoreFiles.get(port).remove(fileName);
-                    dStoreNumbFiles.get(port).decrementAndGet();
-                }
+    /**
+     * Park until no STORE or REMOVE is waiting for acks
+     */
+    private void awaitOperationsDrained() throws InterruptedException {
+        operationLock.lock();
+        try {
+            while (operationsInFlight.get() != 0) {
+                operationDone.await();
             }
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    /**
+     * Wake up a rebalance waiting for in-flight operations
+     */
+    private void signalOperationDone() {
+        operationLock.lock();
+        try {
+            operationDone.signalAll();
+        } finally {
+            operationLock.unlock();
+        }
+    }
 
-            // > RF/N send to other port
-            int numbFile = dStoreNumbFiles.get(port).get();
-            Double rfn = (Double.valueOf(this.r) * Double.valueOf(fileSizeIndex.keySet().size())) / (Double.valueOf(dStoreConnections.keySet().size()));
+    /**
+     * Run an operation now, or once the running rebalance finishes. Only STOREs, REMOVEs and JOINs wait, as
+     * they change the files the plan is made from; LOADs are served from the index, which a rebalance only
+     * changes once every DStore has completed it
+     * @param operation The operation to be run
+     */
+    private void afterRebalance(Runnable operation) {
+        afterRebalance(0, operation);
+    }
 
-            if(numbFile > Math.ceil(rfn))  {
-               int remove = (int) (numbFile - Math.ceil(rfn));
-               for(String fileName : dStoreFiles.get(port).subList(0,remove)) {
-                   int send_port = chooseStorePorts(fileName,1).get(0);
-                   files_to_send += fileName + " 1 " + send_port;
-                   files_to_remove += " " + fileName;
-                   dStoreFiles.get(port).remove(fileName);
-                   dStoreNumbFiles.get(port).decrementAndGet();
-                   dStoreFiles.get(send_port).add(fileName);
-                   dStoreNumbFiles.get(send_port).incrementAndGet();
-               }
+    /**
+     * Run an operation now, or once the running rebalance finishes, counting the acks it waits for as in
+     * flight. The check and the count are made under the same lock, so a rebalance starting in between still
+     * waits for them
+     * @param operations STOREs or REMOVEs the operation completes through finishStore or finishRemove
+     * @param operation The operation to be run
+     */
+    private void afterRebalance(int operations, Runnable operation) {
+        rebalanceLock.lock();
+        try {
+            if (rebalancing.get()) {
+                deferredOperations.add(() -> afterRebalance(operations, operation));
+                return;
             }
+            operationsInFlight.addAndGet(operations);
+        } finally {
+            rebalanceLock.unlock();
+        }
+        operation.run();
+    }
 
-            // rebalance add
-            for (String fileName : rebalanceAdd.keySet()) {
-                if(dStoreFiles.get(port).contains(fileName)) {
-                    String ports = "";
-                    List<Integer> send_ports = chooseStorePorts(fileName,rebalanceAdd.get(fileName).get());
+    /**
+     * Mark the rebalance as started, new operations are deferred until it ends
+     */
+    private void beginRebalance() {
+        rebalanceLock.lock();
+        try {
+            rebalancing.set(true);
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
 
-                    for(Integer iport : send_ports){
-                        ports += " " + iport;
-                    }
-                    files_to_send += fileName + " " + rebalanceAdd.get(fileName).get() + ports;
-                    files_to_send_count ++;
-                    rebalanceAdd.remove(fileName);
+    /**
+     * Mark the rebalance as finished and release the deferred operations
+     */
+    private void endRebalance() {
+        List<Runnable> released;
+        rebalanceLock.lock();
+        try {
+            rebalancing.set(false);
+            released = new ArrayList<>(deferredOperations);
+            deferredOperations.clear();
+        } finally {
+            rebalanceLock.unlock();
+        }
+        for (Runnable operation : released) {
+            workers.execute(operation);
+        }
+    }
 
-                    for(Integer iport : send_ports) {
-                        dStoreFiles.get(iport).add(fileName);
-                        dStoreNumbFiles.get(iport).incrementAndGet();
-                    }
-                }
+    /**
+     * Dry run of the planner on a synthetic namespace: files of 1 KiB to 1 MiB spread evenly over some DStores,
+     * planned as they are and then with one more DStore joining empty
+     * @param fileCount Files in the namespace
+     * @param dStores DStores holding them
+     * @param r R factor
+     */
+    static void planDryRun(int fileCount, int dStores, int r, boolean ring) {
+        HashRing hashRing = new HashRing();
+        for (int d = 0; d < dStores; d++) {
+            hashRing.join(d);
+        }
+        Function<String, List<Integer>> homes = ring ? hashRing.homes(r) : null;
+        Random random = new Random(fileCount);
+        Map<String, Long> sizes = new HashMap<>(fileCount * 2);
+        Map<Integer, List<String>> listed = new HashMap<>();
+        for (int d = 0; d < dStores; d++) {
+            listed.put(d, new ArrayList<>());
+        }
+        for (int i = 0; i < fileCount; i++) {
+            String fileName = "file" + i;
+            sizes.put(fileName, 1024L + random.nextInt(1 << 20));
+            for (int j = 0; j < r; j++) {
+                listed.get(ring ? hashRing.choose(fileName, r).get(j) : (i + j) % dStores).add(fileName);
             }
-
-            dStoreConnections.get(port).sendDStoreMsg(Protocol.REBALANCE_TOKEN + " " + files_to_send_count + files_to_send + " " + files_to_remove_count + files_to_remove);
         }
+
+        RebalancePlan steady = new RebalancePlanner(r, homes).plan(listed, sizes::get);
+        System.out.println(dStores + " DStores: " + steady);
+        listed.put(dStores, new ArrayList<>());
+        hashRing.join(dStores);
+        RebalancePlan join = new RebalancePlanner(r, homes).plan(listed, sizes::get);
+        System.out.println("JOIN of DStore " + (dStores + 1) + ": " + join);
+        System.out.printf("Moved %.1f%% of the bytes, 1/%d is %.1f%%%n", 100.0 * join.getBytesCopied() / join.getBytesStored(),
+                dStores + 1, 100.0 / (dStores + 1));
     }
 
     public static void main(String[] args) {
-        Controller controller = new Controller(Integer.parseInt(args[0]), Integer.parseInt(args[1]),  Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        //Controller plan files dstores r [ring]: dry run of the rebalance planner
+        if (args.length >= 4 && args[0].equals("plan")) {
+            planDryRun(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                    args.length > 4 && args[4].equals("ring"));
+            return;
+        }
+
+        String frontEnd = "nio";
+        String metadataFolder = null;
+        String placementMode = "load";
+        for (int i = 4; i < args.length; i++) {
+            if (args[i].startsWith("metadata=")) {
+                metadataFolder = args[i].substring("metadata=".length());
+            } else if (args[i].startsWith("placement=")) {
+                placementMode = args[i].substring("placement=".length());
+            } else {
+                frontEnd = args[i];
+            }
+        }
+
+        Controller controller = new Controller(Integer.parseInt(args[0]), Integer.parseInt(args[1]),  Integer.parseInt(args[2]), Integer.parseInt(args[3]), frontEnd);
+        if (metadataFolder != null) {
+            controller.setMetadataFolder(metadataFolder);
+        }
+        controller.setPlacement(placementMode);
         controller.startController();
     }
 
@@ -325,26 +601,32 @@ public class Controller {
      */
      public class DStore {
          Integer port;
-         Socket socket;
+         Connection connection;
+         boolean framed;
 
-         public DStore(Integer port, Socket socket) {
+         public DStore(Integer port, Connection connection, boolean framed) {
              this.port = port;
-             this.socket = socket;
+             this.connection = connection;
+             this.framed = framed;
          }
 
         /**
-         * Method to send message to a Dstore
-         * @param msg message to be sent
+         * Method to send message to a Dstore, as a frame if negotiated at JOIN
+         * @param token Token of the message
+         * @param fields Fields after the token
          */
-         public void sendDStoreMsg(String msg) {
-             try {
-                 var dstoreWrite = new PrintWriter(socket.getOutputStream(), true);
-                 dstoreWrite.println(msg);
-                 logger.info("[" + cport + " -> " + port + "] " + msg);
-             } catch (IOException e) {
-                 logger.info("Lost Connection: " + port);
-                 dStoreConnections.remove(this.port);
-                 e.printStackTrace();
+         public void sendDStoreMsg(String token, List<String> fields) {
+             if (framed) {
+                 connection.sendFrame(Frames.encode(token, fields));
+             } else {
+                 StringBuilder msg = new StringBuilder(token);
+                 for (String field : fields) {
+                     msg.append(' ').append(field);
+                 }
+                 connection.send(msg.toString());
+             }
+             if (logger.isLoggable(Level.INFO)) {
+                 logger.info("[" + cport + " -> " + port + "] " + token + " " + String.join(" ", fields));
              }
          }
 
@@ -357,416 +639,2938 @@ public class Controller {
      }
 
     /**
-     * Thread to control Rebalance operation
+     * Where the replicas of new files go. Told about every DStore joining and leaving and every replica added or
+     * dropped, so a strategy may keep its own view of the DStores
      */
-     class RebalanceThread extends Thread {
-        private Integer rebalancePeriod;
+    interface Placement {
+        void join(Integer port);
 
-        public RebalanceThread(Integer rebalance_period) {
-            this.rebalancePeriod = rebalance_period;
+        void leave(Integer port);
+
+        void reset(Integer port, int count);
+
+        void adjust(Integer port, int delta);
+
+        /**
+         * @param fileName File to be stored
+         * @param r_factor Number of DStores wanted
+         * @return up to r_factor ports
+         */
+        default List<Integer> choose(String fileName, int r_factor) {
+            return choose(fileName, r_factor, Collections.emptyList());
         }
 
-         @Override
-         public void run() {
-            while(true) {
-                var startTime = System.currentTimeMillis();
-                while(System.currentTimeMillis() <= startTime + rebalancePeriod) {
-                    continue;
+        /**
+         * @param fileName File to be placed
+         * @param r_factor Number of DStores wanted
+         * @param holders DStores already holding the file, skipped
+         * @return up to r_factor ports
+         */
+        List<Integer> choose(String fileName, int r_factor, Collection<Integer> holders);
+
+        /**
+         * @param fileNames Files to be stored together
+         * @param r_factor Number of DStores per file
+         * @return the ports of every file, in order
+         */
+        List<List<Integer>> chooseBatch(List<String> fileNames, int r_factor);
+
+        /**
+         * @param r_factor Number of DStores per file
+         * @return the DStores every file belongs on for a rebalance to move it back to, or null when the rebalance
+         * balances the DStores by bytes instead
+         */
+        Function<String, List<Integer>> homes(int r_factor);
+    }
+
+    /**
+     * Replica count of every DStore, ordered by load so the least loaded DStores are found in O(R log D)
+     * without scanning the file index. Kept in step with the replicas of the file records
+     */
+    class PlacementIndex implements Placement {
+        private final Map<Integer, Integer> counts = new HashMap<>();
+        private final TreeSet<Long> byLoad = new TreeSet<>();
+
+        /**
+         * Order key, the replica count in the high half and the port in the low half
+         */
+        private long key(int count, int port) {
+            return ((long) count << 32) | port;
+        }
+
+        /**
+         * Add a DStore with no replicas, if not present
+         * @param port DStore port
+         */
+        public synchronized void join(Integer port) {
+            if (counts.putIfAbsent(port, 0) == null) {
+                byLoad.add(key(0, port));
+            }
+        }
+
+        /**
+         * Drop a DStore
+         * @param port DStore port
+         */
+        public synchronized void leave(Integer port) {
+            Integer count = counts.remove(port);
+            if (count != null) {
+                byLoad.remove(key(count, port));
+            }
+        }
+
+        /**
+         * Set the replica count of a DStore, e.g. from its LIST
+         * @param port DStore port
+         * @param count Replicas held
+         */
+        public synchronized void reset(Integer port, int count) {
+            Integer current = counts.get(port);
+            if (current != null) {
+                byLoad.remove(key(current, port));
+                counts.put(port, count);
+                byLoad.add(key(count, port));
+            }
+        }
+
+        /**
+         * Change the replica count of a DStore
+         * @param port DStore port
+         * @param delta Replicas added, negative when removed
+         */
+        public synchronized void adjust(Integer port, int delta) {
+            Integer current = counts.get(port);
+            if (current != null) {
+                reset(port, Math.max(0, current + delta));
+            }
+        }
+
+        /**
+         * Least loaded DStores, ties broken by port
+         * @param r_factor Number of DStores wanted
+         * @param holders DStores to be skipped
+         * @return up to r_factor ports
+         */
+        public synchronized List<Integer> leastLoaded(int r_factor, Collection<Integer> holders) {
+            List<Integer> ports = new ArrayList<>(r_factor);
+            for (Iterator<Long> it = byLoad.iterator(); it.hasNext() && ports.size() < r_factor; ) {
+                Integer port = (int) (it.next() & 0xffffffffL);
+                if (!holders.contains(port)) {
+                    ports.add(port);
                 }
-                rebalanceOperation();
-                rebalancing.set(false);
             }
-         }
-     }
+            return ports;
+        }
+
+        /**
+         * Place a batch of files in one pass, each on the least loaded DStores once the files placed before it
+         * are counted. The counts are restored afterwards, acks add the replicas as for a single STORE
+         * @param files Number of files
+         * @param r_factor Number of DStores per file
+         * @return the ports of every file, in order
+         */
+        public synchronized List<List<Integer>> leastLoadedBatch(int files, int r_factor) {
+            List<List<Integer>> placements = new ArrayList<>(files);
+            for (int i = 0; i < files; i++) {
+                List<Integer> ports = leastLoaded(r_factor, Collections.emptyList());
+                for (Integer port : ports) {
+                    adjust(port, 1);
+                }
+                placements.add(ports);
+            }
+            for (List<Integer> ports : placements) {
+                for (Integer port : ports) {
+                    adjust(port, -1);
+                }
+            }
+            return placements;
+        }
+
+        @Override
+        public List<Integer> choose(String fileName, int r_factor, Collection<Integer> holders) {
+            return leastLoaded(r_factor, holders);
+        }
+
+        @Override
+        public List<List<Integer>> chooseBatch(List<String> fileNames, int r_factor) {
+            return leastLoadedBatch(fileNames.size(), r_factor);
+        }
+
+        @Override
+        public Function<String, List<Integer>> homes(int r_factor) {
+            return null;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return counts.toString();
+        }
+    }
 
     /**
-     * Thread to keep connection with each client
+     * Consistent-hash ring with virtual nodes. A file goes to the first R distinct DStores clockwise from the hash
+     * of its name, found in O(log V + R) without looking at any load, so batches need no coordination and a DStore
+     * joining or leaving only changes the files next to its own points. Replica counts are not used
      */
-     class SocketThread extends Thread {
-        Socket client;
-        Integer r;
+    static class HashRing implements Placement {
+        private static final int VIRTUAL_NODES = 128; //Points of each DStore on the ring
+        private final TreeSet<Integer> members = new TreeSet<>();
+        private volatile Ring ring = new Ring(new long[0], new int[0]);
 
-        public SocketThread (Socket socket, Integer r) {
-            this.client = socket;
-            this.r = r;
+        /**
+         * Points of the ring in ascending order with the DStore owning each, replaced as a whole on membership changes
+         */
+        private static class Ring {
+            private final long[] points;
+            private final int[] owners;
+
+            Ring(long[] points, int[] owners) {
+                this.points = points;
+                this.owners = owners;
+            }
         }
 
-         @Override
-         public void run() {
+        /**
+         * 64-bit FNV-1a of the characters, spread with the MurmurHash3 finaliser
+         */
+        static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                h ^= key.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
 
-             boolean isDStore = false;
-             Integer currentDStorePort = -1;
-             try {
-                 BufferedReader clinetRead = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                 PrintWriter clientWrite = new PrintWriter(client.getOutputStream(), true);
-                 String clientInput = null;
-
-                 for(;;) {
-                     clientInput = clinetRead.readLine();
-
-                     if (clientInput != null) {
-
-                         //Deal with input commands
-                         String[] commands = clientInput.split(" ");
-                         String commandToken;
-                         if (commands.length == 1) {
-                             commandToken = clientInput.trim();
-                             commands[0] = commandToken;
-                         } else {
-                             commandToken = commands[0];
-                         }
-                         logger.info("[" + client.getPort() + " -> " + cport + " ]" + commands);
-
-//                         System.out.println("Msg From " + currentDStorePort + ": "+ commandToken);
-
-                         //Recognize DStore COMMAND: JOIN
-                         if (commandToken.equals(Protocol.JOIN_TOKEN)) {
-
-                             //Check duplicate dstore port
-                             currentDStorePort = Integer.parseInt(commands[1]);
-                             while (rebalancing.get()) {
-                                 continue;
-                             }
-
-                             if (dStoreConnections.get(currentDStorePort) != null) {
-                                 logger.info("[" + client.getPort() + " -> " + cport + " ] Denied! DStore port conflicts!");
-                                 client.close();
-                                 break;
-                             }
-
-                             isDStore = true;
-                             synchronized (generalLock) {
-                                 dStoreConnections.put(currentDStorePort, new DStore(currentDStorePort, client));
-                             }
-                             countDStore.incrementAndGet();
-                             currentDStorePort = Integer.parseInt(commands[1]);
-                             logger.info("Binding DStore port: " + commands[1] + " with socket\n" +
-                                     "Current connected DStore: " + countDStore.get() + "/" + this.r);
-
-                             clientWrite.println(Protocol.JOIN_SUCCESS_TOKEN);
-
-                             if (countDStore.get() >= this.r) {
-                                 logger.info("R DStores are connected, ready for client!");
-                                 dStoreReady.set(true);
-                             }
-                             continue;
-
-                         }
-
-                         //Operations with Client (DStore are totally connected)
-                         if (!isDStore && dStoreReady.get()) {
-                             //----------Client----------
-
-                             //COMMAND: LIST
-                             if (commandToken.equals(Protocol.LIST_TOKEN)) {
-
-                                 if (commands.length != 1) {
-                                     logger.info("[System Warning] Wrong LIST COMMAND");
-                                     continue;
-                                 }
-
-                                 if (fileSizeIndex.keySet().size() == 0) {
-                                     clientWrite.println(Protocol.LIST_TOKEN);
-                                     logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.LIST_TOKEN);
-                                 } else {
-                                     String file_list = "";
-                                     for (String i : fileSizeIndex.keySet()) {
-                                         file_list = file_list + " " + i;
-                                     }
-                                     clientWrite.println(Protocol.LIST_TOKEN + file_list);
-                                     logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.LIST_TOKEN + file_list);
-                                 }
-
-                             }
-
-                             //COMMAND: STORE
-                             else if (commandToken.equals(Protocol.STORE_TOKEN)) {
-
-                                 //Check length of STORE command from Client
-                                 if (commands.length != 3) {
-                                     logger.info("[System Warning] Wrong STORE COMMAND");
-                                     continue;
-                                 }
-
-                                 String fileName = commands[1];
-                                 Integer fileSize = Integer.parseInt(commands[2]);
-
-                                 synchronized (generalLock) {
-                                     //If fileName duplicates
-                                     if (fileStateIndex.containsKey(fileName)) {
-                                         clientWrite.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
-                                         logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
-                                         continue;
-                                     }
-
-                                     //If Rebalance is working
-                                     while (rebalancing.get()) {
-                                         continue;
-                                     }
-                                 }
-
-                                 //Update file lists
-                                 fileStateIndex.put(fileName, FileState.STORE_IN_PROGRESS);
-                                 ackReceive.put(fileName, new AtomicInteger(0));
-                                 validLoadPorts.put(fileName, new ArrayList<Integer>());
-
-                                 //Send Msg to client
-                                 logger.info("[Controller] START TO RECEIVE ACK: " + fileName);
-                                 updateStoreFactor();
-                                 String msg = "";
-                                 for (Integer i : chooseStorePorts(this.r)) {
-                                     msg += " " + i;
-                                 }
-                                 clientWrite.println(Protocol.STORE_TO_TOKEN + msg);
-                                 System.out.println("[" + cport + " -> " + client.getPort() + "] " + Protocol.STORE_TO_TOKEN + msg);
-
-                                 boolean storeComplete = false;
-                                 var startTime = System.currentTimeMillis();
-
-                                 //Timeout Setting
-                                 while (System.currentTimeMillis() <= startTime + timeout) {
-                                     if (ackReceive.get(fileName).get() >= r) {
-                                         clientWrite.println(Protocol.STORE_COMPLETE_TOKEN);
-                                         logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.STORE_COMPLETE_TOKEN);
-                                         fileStateIndex.remove(fileName);
-                                         fileStateIndex.put(fileName, FileState.STORE_COMPLETE);
-                                         fileSizeIndex.put(fileName, fileSize);
-                                         updateStoreFactor();
-                                         storeComplete = true;
-                                         break;
-                                     }
-                                 }
-
-                                 if (!storeComplete) {
-                                     logger.info("[System Warning] " + fileName + " Store timeout");
-                                     validLoadPorts.remove(fileName);
-                                     fileStateIndex.remove(fileName);
-                                 }
-
-                                 synchronized (storeAckLock) {
-                                     ackReceive.remove(fileName);
-                                 }
-                             }
-
-                             //COMMAND: LOAD && RELOAD
-                             else if (commandToken.equals(Protocol.LOAD_TOKEN) || commands[0].equals(Protocol.RELOAD_TOKEN)) {
-                                 String fileName;
-                                 //Check length of LOAD command from Client
-                                 if (commands.length != 2) {
-                                     logger.info("[System Warning] Wrong LOAD && RELOAD COMMAND");
-                                     continue;
-                                 }
-
-                                 //Check file exists
-                                 fileName = commands[1];
-                                 if (fileSizeIndex.keySet().contains(fileName)) {
-
-                                     //Wait for rebalance
-                                     while (rebalancing.get()) {
-                                         continue;
-                                     }
-
-                                     //Response to Client: LOAD_FROM port filesize
-                                     if (commands[0].equals(Protocol.LOAD_TOKEN)) {
-                                         //Remove last load operation from the list
-                                         if (loadChoosePort.containsKey(fileName)) {
-                                             loadChoosePort.remove(fileName);
-                                         }
-
-                                         loadChoosePort.put(fileName, validLoadPorts.get(fileName));
-                                         clientWrite.println(Protocol.LOAD_FROM_TOKEN + " " + chooseLoadPort(fileName) + " " + fileSizeIndex.get(fileName));
-                                         logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.LOAD_FROM_TOKEN + " " + chooseLoadPort(fileName) + " " + fileSizeIndex.get(fileName));
-                                     }
-
-                                     // RELOAD
-                                     else {
-                                         if (loadChoosePort.get(fileName).size() == 0) {
-                                             //Cannot connect to any port
-                                             clientWrite.println(Protocol.ERROR_LOAD_TOKEN);
-                                             logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_LOAD_TOKEN);
-                                         } else {
-                                             clientWrite.println(Protocol.LOAD_FROM_TOKEN + " " + chooseLoadPort(fileName) + " " + fileSizeIndex.get(fileName));
-                                             logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.LOAD_FROM_TOKEN + " " + chooseLoadPort(fileName) + " " + fileSizeIndex.get(fileName));
-                                         }
-                                     }
-
-                                 } else {
-                                     clientWrite.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-                                     logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-                                 }
-
-                             }
-
-                             //COMMAND: REMOVE
-                             else if (commandToken.equals(Protocol.REMOVE_TOKEN)) {
-                                 if (commands.length != 2) {
-                                     System.err.println("[System Warning] Wrong REMOVE COMMAND");
-                                     continue;
-                                 }
-
-                                 String fileName = commands[1];
-
-                                 if (!fileSizeIndex.containsKey(fileName)) {
-                                     clientWrite.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-                                     logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-                                     continue;
-                                 }
-
-                                 //Wait for rebalance
-                                 while (rebalancing.get()) {
-                                     continue;
-                                 }
-
-                                 synchronized (generalLock) {
-                                     //Update Index
-                                     if(fileStateIndex.keySet().contains(fileName)) {
-                                         fileStateIndex.remove(fileName);
-                                     }
-                                     fileStateIndex.put(fileName, FileState.REMOVE_IN_PROGRESS);
-                                 }
-
-                                 //Send REMOVE Command
-                                 for (DStore i : dStoreConnections.values()) {
-                                     i.sendDStoreMsg(Protocol.REMOVE_TOKEN + " " + fileName);
-                                     logger.info("[" + cport + " -> " + i.getPort() + "] " + Protocol.REMOVE_TOKEN + " " + fileName);
-                                 }
-
-                                 synchronized (removeAckLock) {
-                                     ackRemove.put(fileName, new AtomicInteger());
-                                 }
-
-                                 boolean removeComplete = false;
-
-                                 //Timeout Setting
-                                 var startTime = System.currentTimeMillis();
-                                 while (System.currentTimeMillis() <= startTime + timeout) {
-                                     if (ackRemove.get(fileName).get() == r) {
-                                         removeComplete = true;
-                                         clientWrite.println(Protocol.REMOVE_COMPLETE_TOKEN);
-                                         fileSizeIndex.remove(fileName);
-                                         break;
-                                     }
-                                 }
-
-                                 if (!removeComplete) {
-                                     logger.info("[Controller] REMOVE timeout. File: "+ fileName);
-                                 }
-
-                                 ackRemove.remove(fileName);
-                                 fileStateIndex.remove(fileName);
-                                 validLoadPorts.remove(fileName);
-                             }
-
-                         }
-
-                         //Operations with Client (DStore aren't totally connected)
-                         else if (!isDStore && !dStoreReady.get()) {
-                             clientWrite.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-                             logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-                         }
-
-                         //Operations with DStore
-                         else if (isDStore) {
-
-                             //COMMAND: STORE_ACK filename
-                             if (commandToken.equals(Protocol.STORE_ACK_TOKEN)) {
-                                 if (commands.length != 2) {
-                                     logger.info("[System Warning] Wrong STORE_ACK Command");
-                                 }
-                                 String fileName = commands[1].trim();
-
-                                 //Update File Index State when receive ack
-                                 synchronized (storeAckLock) {
-                                     if (ackReceive.keySet().contains(fileName)) {
-                                         ackReceive.get(fileName).incrementAndGet();
-                                         validLoadPorts.get(fileName).add(currentDStorePort);
-                                     } else {
-                                         logger.info("[Controller] ACK file not exists" + ackReceive.keySet());
-                                     }
-                                 }
-                             }
-
-                             //COMMAND: REMOVE_ACK filename
-                             else if (commandToken.equals(Protocol.REMOVE_ACK_TOKEN)) {
-                                 if (commands.length != 2) {
-                                     logger.info("[System Warning] Wrong STORE_ACK Command");
-                                 }
-                                 String fileName = commands[1].trim();
-
-                                 //Update File Index State when receive ack
-                                 synchronized (removeAckLock) {
-                                     if (ackRemove.containsKey(fileName)) {
-                                         ackRemove.get(fileName).incrementAndGet();
-                                         if (validLoadPorts.get(fileName) != null) {
-                                             validLoadPorts.get(fileName).remove(currentDStorePort);
-                                         }
-                                     } else {
-                                         logger.info("[Controller] ACK file not exists");
-                                     }
-                                 }
-                             }
-
-                             //COMMAND: REBALANCE_COMPLETE
-                             else if (commandToken.equals(Protocol.REBALANCE_COMPLETE_TOKEN)) {
-                                 logger.info("DStore port:" + currentDStorePort + " REBALANCE COMPELETE!");
-                                 ackRebalance.incrementAndGet();
-                             }
-
-                             //COMMAND: LIST
-                             else if (commandToken.equals(Protocol.LIST_TOKEN)) {
-                                 ArrayList<String> fileList = new ArrayList<>(Arrays.asList(commands));
-                                 fileList.remove(0);
-
-                                 dStoreNumbFiles.put(currentDStorePort, new AtomicInteger(fileList.size()));
-                                 dStoreFiles.put(currentDStorePort, fileList);
-
-                                 //Update Valid Load Port
-                                 validLoadPorts.clear();
-                                 for (String fileName : fileList) {
-                                     if (validLoadPorts.get(fileName) == null) {
-                                         validLoadPorts.put(fileName, new ArrayList<Integer>());
-                                     }
-                                     if (!validLoadPorts.get(fileName).contains(currentDStorePort)) {
-                                         validLoadPorts.get(fileName).add(currentDStorePort);
-                                     }
-                                 }
-                                 listACK.add(currentDStorePort);
-                             }
-                         }
-
-                     } else {
-                         if (isDStore) {
-                             logger.info("[System Error] DStore Disconnected! Port: "+ currentDStorePort);
-                             dStoreConnections.remove(currentDStorePort);
-                             deletePortFromValidLoad(currentDStorePort);
-                             countDStore.decrementAndGet();
-                             if (countDStore.get() < this.r) {
-                                 dStoreReady.set(false);
-                             }
-                             logger.info("[Controller] Current connected DStore: " + countDStore.get() + "/" + this.r);
-                         } else {
-                             logger.info("[System Error] Client Disconnected!");
-                         }
-                         client.close();
-                         break;
-                     }
-                 }
+        private void rebuild() {
+            TreeMap<Long, Integer> points = new TreeMap<>();
+            for (Integer port : members) {
+                for (int i = 0; i < VIRTUAL_NODES; i++) {
+                    points.putIfAbsent(hash(port + "#" + i), port);
+                }
+            }
+            long[] hashes = new long[points.size()];
+            int[] owners = new int[points.size()];
+            int i = 0;
+            for (Map.Entry<Long, Integer> point : points.entrySet()) {
+                hashes[i] = point.getKey();
+                owners[i++] = point.getValue();
+            }
+            ring = new Ring(hashes, owners);
+        }
+
+        @Override
+        public synchronized void join(Integer port) {
+            if (members.add(port)) {
+                rebuild();
+            }
+        }
+
+        @Override
+        public synchronized void leave(Integer port) {
+            if (members.remove(port)) {
+                rebuild();
+            }
+        }
+
+        @Override
+        public void reset(Integer port, int count) {
+        }
+
+        @Override
+        public void adjust(Integer port, int delta) {
+        }
+
+        @Override
+        public List<Integer> choose(String fileName, int r_factor, Collection<Integer> holders) {
+            Ring current = ring;
+            List<Integer> ports = new ArrayList<>(r_factor);
+            int start = Arrays.binarySearch(current.points, hash(fileName));
+            if (start < 0) {
+                start = -start - 1;
+            }
+            for (int i = 0; i < current.points.length && ports.size() < r_factor; i++) {
+                Integer port = current.owners[(start + i) % current.points.length];
+                if (!ports.contains(port) && !holders.contains(port)) {
+                    ports.add(port);
+                }
+            }
+            return ports;
+        }
+
+        @Override
+        public List<List<Integer>> chooseBatch(List<String> fileNames, int r_factor) {
+            List<List<Integer>> placements = new ArrayList<>(fileNames.size());
+            for (String fileName : fileNames) {
+                placements.add(choose(fileName, r_factor));
+            }
+            return placements;
+        }
+
+        @Override
+        public Function<String, List<Integer>> homes(int r_factor) {
+            return fileName -> choose(fileName, r_factor);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return members + " on " + ring.points.length + " points";
+        }
+    }
+
+    /**
+     * Read load of every DStore: LOADs sent there and not yet reported served, and a moving average of the
+     * service times it reports. Replicas are picked with power-of-two choices on these, so hot files spread
+     * over their replicas and slow DStores get fewer reads. A LOAD not reported within the timeout stops
+     * counting, as the client may have disconnected or never asked the DStore for the data
+     */
+    class LoadTracker {
+        private static final double SMOOTHING = 0.2; //Weight of the newest service time
+        private static final double DEFAULT_MICROS = 1000;
+        private static final long STALE_NANOS = TimeUnit.SECONDS.toNanos(2); //Age after which an average is not trusted
+        private final Map<Integer, PortLoad> ports = new ConcurrentHashMap<>();
+
+        /**
+         * Load of one DStore
+         */
+        private class PortLoad {
+            private final ConcurrentLinkedQueue<Long> started = new ConcurrentLinkedQueue<>(); //Start of every LOAD in flight, oldest first
+            private final AtomicInteger inFlight = new AtomicInteger(); //Size of started
+            private volatile double serviceMicros = DEFAULT_MICROS;
+            private volatile long reported = 0;
+
+            /**
+             * Expected wait for a new LOAD. A DStore not heard from for a while gets another chance
+             */
+            private double cost() {
+                long expired = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(timeout);
+                for (Long start = started.peek(); start != null && start - expired < 0; start = started.peek()) {
+                    release();
+                }
+                double micros = System.nanoTime() - reported > STALE_NANOS ? DEFAULT_MICROS : serviceMicros;
+                return (1 + inFlight.get()) * micros;
+            }
+
+            private void start() {
+                started.add(System.nanoTime());
+                inFlight.incrementAndGet();
+            }
+
+            /**
+             * Stop counting the oldest LOAD in flight, if any
+             */
+            private void release() {
+                if (started.poll() != null) {
+                    inFlight.decrementAndGet();
+                }
+            }
+
+            private synchronized void report(long micros) {
+                long now = System.nanoTime();
+                boolean fresh = reported != 0 && now - reported <= STALE_NANOS;
+                serviceMicros = fresh ? serviceMicros + SMOOTHING * (micros - serviceMicros) : micros;
+                reported = now;
+            }
+        }
+
+        private PortLoad load(Integer port) {
+            return ports.computeIfAbsent(port, p -> new PortLoad());
+        }
+
+        /**
+         * Choose one of the candidates, the cheaper of two picked at random
+         * @param candidates Ports holding the file
+         * @return the chosen port
+         */
+        public Integer choose(List<Integer> candidates) {
+            if (candidates.size() == 1) {
+                return candidates.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(candidates.size());
+            int second = random.nextInt(candidates.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            Integer a = candidates.get(first);
+            Integer b = candidates.get(second);
+            return load(a).cost() <= load(b).cost() ? a : b;
+        }
+
+        /**
+         * Order candidates from the cheapest to the most loaded
+         * @param candidates Ports holding the file, sorted in place
+         */
+        public void order(List<Integer> candidates) {
+            Map<Integer, Double> costs = new HashMap<>();
+            for (Integer port : candidates) {
+                costs.put(port, load(port).cost());
+            }
+            candidates.sort(Comparator.comparingDouble(costs::get));
+        }
+
+        /**
+         * A client was sent to a DStore
+         * @param port DStore port
+         */
+        public void started(Integer port) {
+            load(port).start();
+        }
+
+        /**
+         * A DStore reported a LOAD_DATA as served
+         * @param port DStore port
+         * @param micros Service time
+         */
+        public void finished(Integer port, long micros) {
+            abandoned(port);
+            load(port).report(micros);
+        }
+
+        /**
+         * A client gave up on a DStore, it may never report the LOAD
+         * @param port DStore port
+         */
+        public void abandoned(Integer port) {
+            load(port).release();
+        }
+
+        /**
+         * Drop a disconnected DStore
+         * @param port DStore port
+         */
+        public void forget(Integer port) {
+            ports.remove(port);
+        }
+    }
+
+    /**
+     * Rebalance planner working from where the replicas are to where they should be. Listed files missing
+     * from the index are removed, files with too many replicas lose those on the fullest DStores and files
+     * with too few are copied to the emptiest. Then the DStores are balanced by bytes: while the fullest holds
+     * more than the mean plus a tolerance, or the emptiest less than the mean minus it, the largest file of
+     * the fullest that does not overshoot the mean moves to an emptier DStore. Only the excess moves, so a
+     * DStore joining N others receives about 1/(N+1) of the data. Every move updates the placement before the
+     * next one is chosen, so two DStores never send the same file to the same place. With a placement that gives
+     * every file its DStores, files are copied to those they lack and leave the others instead
+     */
+    static class RebalancePlanner {
+        private static final double TOLERANCE = 0.05; //Share of the mean a DStore may be off by
+        private static final int SCAN_LIMIT = 64; //Smallest files looked at once none fits what a DStore holds above the mean
+        private final int r;
+        private final Function<String, List<Integer>> homes;
+
+        /**
+         * One file while planning, with the indexes of the DStores holding it
+         */
+        private static class Placed {
+            private final String name;
+            private final long size;
+            private int[] holders = new int[4];
+            private int count = 0;
+
+            Placed(String name, long size) {
+                this.name = name;
+                this.size = size;
+            }
+
+            boolean holds(int dStore) {
+                for (int i = 0; i < count; i++) {
+                    if (holders[i] == dStore) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            void add(int dStore) {
+                if (count == holders.length) {
+                    holders = Arrays.copyOf(holders, count * 2);
+                }
+                holders[count++] = dStore;
+            }
+
+            void remove(int dStore) {
+                for (int i = 0; i < count; i++) {
+                    if (holders[i] == dStore) {
+                        holders[i] = holders[--count];
+                        return;
+                    }
+                }
+            }
+        }
+
+        public RebalancePlanner(int r) {
+            this(r, null);
+        }
+
+        /**
+         * @param r R factor
+         * @param homes DStores each file belongs on, null to balance by bytes
+         */
+        public RebalancePlanner(int r, Function<String, List<Integer>> homes) {
+            this.r = r;
+            this.homes = homes;
+        }
+
+        /**
+         * @param listed Files held by every DStore taking part
+         * @param sizeOf Size of a file in the index, null if it is not stored
+         * @return the plan
+         */
+        public RebalancePlan plan(Map<Integer, ? extends Collection<String>> listed, Function<String, Long> sizeOf) {
+            long startTime = System.nanoTime();
+            int[] ports = listed.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            int n = ports.length;
+            RebalancePlan plan = new RebalancePlan();
+            long[] load = new long[n];
+            long[] sending = new long[n];
+            Map<String, Placed> placed = new HashMap<>();
+            List<List<Placed>> held = new ArrayList<>(n);
+
+            for (int d = 0; d < n; d++) {
+                List<Placed> own = new ArrayList<>();
+                for (String fileName : listed.get(ports[d])) {
+                    Long size = sizeOf.apply(fileName);
+                    if (size == null) {
+                        plan.remove(ports[d], fileName);
+                        continue;
+                    }
+                    Placed file = placed.computeIfAbsent(fileName, name -> new Placed(name, size));
+                    if (!file.holds(d)) {
+                        file.add(d);
+                        own.add(file);
+                        load[d] += size;
+                    }
+                }
+                held.add(own);
+            }
+
+            if (homes != null) {
+                moveHome(plan, ports, load, sending, placed.values());
+                for (long bytes : load) {
+                    plan.bytesStored += bytes;
+                }
+                plan.nanos = System.nanoTime() - startTime;
+                return plan;
+            }
+
+            //Replication first: extra replicas leave the fullest holders, missing ones go to the emptiest DStores
+            for (Placed file : placed.values()) {
+                while (file.count > r) {
+                    int from = file.holders[0];
+                    for (int i = 1; i < file.count; i++) {
+                        if (load[file.holders[i]] > load[from]) {
+                            from = file.holders[i];
+                        }
+                    }
+                    file.remove(from);
+                    load[from] -= file.size;
+                    plan.remove(ports[from], file.name);
+                }
+                //Copies come from the DStores listing the file, not from those it is only planned for
+                int sources = file.count;
+                while (file.count < r) {
+                    int to = -1;
+                    for (int d = 0; d < n; d++) {
+                        if (!file.holds(d) && (to < 0 || load[d] < load[to])) {
+                            to = d;
+                        }
+                    }
+                    if (to < 0) {
+                        break; //Fewer DStores than R
+                    }
+                    int from = file.holders[0];
+                    for (int i = 1; i < sources; i++) {
+                        if (sending[file.holders[i]] < sending[from]) {
+                            from = file.holders[i];
+                        }
+                    }
+                    sending[from] += file.size;
+                    file.add(to);
+                    load[to] += file.size;
+                    plan.copy(ports[from], file.name, ports[to], file.size);
+                }
+            }
+            for (long bytes : load) {
+                plan.bytesStored += bytes;
+            }
+
+            balance(plan, ports, load, held);
+            plan.nanos = System.nanoTime() - startTime;
+            return plan;
+        }
+
+        /**
+         * Copy every file to the DStores it belongs on, from the holder that has sent the least, then drop it from
+         * the others while it has more than R replicas. Homes that did not take part are left out, so a file keeps
+         * its old replicas until they can be replaced
+         * @param files Files listed, each with its holders
+         */
+        private void moveHome(RebalancePlan plan, int[] ports, long[] load, long[] sending, Collection<Placed> files) {
+            Map<Integer, Integer> indexOf = new HashMap<>();
+            for (int d = 0; d < ports.length; d++) {
+                indexOf.put(ports[d], d);
+            }
+            boolean[] home = new boolean[ports.length];
+            for (Placed file : files) {
+                List<Integer> wanted = new ArrayList<>(r);
+                for (Integer port : homes.apply(file.name)) {
+                    Integer d = indexOf.get(port);
+                    if (d != null) {
+                        wanted.add(d);
+                        home[d] = true;
+                    }
+                }
+
+                int sources = file.count;
+                for (int to : wanted) {
+                    if (file.holds(to)) {
+                        continue;
+                    }
+                    int from = file.holders[0];
+                    for (int i = 1; i < sources; i++) {
+                        if (sending[file.holders[i]] < sending[from]) {
+                            from = file.holders[i];
+                        }
+                    }
+                    sending[from] += file.size;
+                    file.add(to);
+                    load[to] += file.size;
+                    plan.copy(ports[from], file.name, ports[to], file.size);
+                }
+                for (int i = file.count - 1; i >= 0 && file.count > r; i--) {
+                    int from = file.holders[i];
+                    if (!home[from]) {
+                        file.remove(from);
+                        load[from] -= file.size;
+                        plan.remove(ports[from], file.name);
+                    }
+                }
+
+                for (int d : wanted) {
+                    home[d] = false;
+                }
+            }
+        }
+
+        /**
+         * Files a DStore held before the rebalance, largest first. Files that left it are skipped in both
+         * directions through path-compressed links, so finding the next one stays close to constant time
+         */
+        private static class Candidates {
+            private final Placed[] files;
+            private final int[] after; //Leads from i to the first file at i or later still here, files.length if none
+            private final int[] before; //Leads from i + 1 to the last file at i or earlier still here plus one, 0 if none
+
+            Candidates(List<Placed> own) {
+                files = own.toArray(new Placed[0]);
+                Arrays.sort(files, (a, b) -> Long.compare(b.size, a.size));
+                after = new int[files.length + 1];
+                before = new int[files.length + 1];
+                for (int i = 0; i <= files.length; i++) {
+                    after[i] = i;
+                    before[i] = i;
+                }
+            }
+
+            private static int find(int[] links, int i) {
+                int root = i;
+                while (links[root] != root) {
+                    root = links[root];
+                }
+                while (links[i] != root) {
+                    int up = links[i];
+                    links[i] = root;
+                    i = up;
+                }
+                return root;
+            }
+
+            int next(int i) {
+                return find(after, i);
+            }
+
+            int previous(int i) {
+                return find(before, i + 1) - 1;
+            }
+
+            void drop(int i) {
+                after[i] = i + 1;
+                before[i + 1] = i;
+            }
+
+            /**
+             * @return the index of the first file no larger than a size
+             */
+            int firstAtMost(long size) {
+                int low = 0;
+                int high = files.length;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (files[mid].size > size) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                return low;
+            }
+        }
+
+        /**
+         * Move files from the fullest DStore to emptier ones until every DStore is within the tolerance of the
+         * mean. Each move narrows the gap between two DStores and a file leaves a DStore once at most, so this ends
+         * @param plan Plan the moves are added to
+         * @param ports Port of each DStore index
+         * @param load Bytes held by each DStore, updated
+         * @param held Files each DStore held before the rebalance
+         */
+        private void balance(RebalancePlan plan, int[] ports, long[] load, List<List<Placed>> held) {
+            int n = ports.length;
+            if (n < 2) {
+                return;
+            }
+            long mean = plan.bytesStored / n;
+            long band = (long) (mean * TOLERANCE);
+            Candidates[] candidates = new Candidates[n];
+            int[][] resume = new int[n][n];
+            for (int d = 0; d < n; d++) {
+                candidates[d] = new Candidates(held.get(d));
+            }
+
+            boolean[] exhausted = new boolean[n];
+            Integer[] byLoad = new Integer[n];
+            while (true) {
+                int from = -1;
+                int emptiest = 0;
+                for (int d = 0; d < n; d++) {
+                    if (!exhausted[d] && (from < 0 || load[d] > load[from])) {
+                        from = d;
+                    }
+                    if (load[d] < load[emptiest]) {
+                        emptiest = d;
+                    }
+                }
+                if (from < 0 || (load[from] <= mean + band && load[emptiest] >= mean - band)) {
+                    break;
+                }
+
+                for (int d = 0; d < n; d++) {
+                    byLoad[d] = d;
+                }
+                Arrays.sort(byLoad, Comparator.comparingLong(d -> load[d]));
+                boolean moved = false;
+                for (int to : byLoad) {
+                    if (load[to] >= load[from]) {
+                        break;
+                    }
+                    int i = pick(candidates[from], resume[from], from, to, load, mean);
+                    if (i >= 0) {
+                        Placed file = candidates[from].files[i];
+                        candidates[from].drop(i);
+                        file.remove(from);
+                        file.add(to);
+                        load[from] -= file.size;
+                        load[to] += file.size;
+                        plan.copy(ports[from], file.name, ports[to], file.size);
+                        plan.remove(ports[from], file.name);
+                        moved = true;
+                        break;
+                    }
+                }
+                if (!moved) {
+                    exhausted[from] = true;
+                }
+            }
+        }
+
+        /**
+         * The largest file of a DStore no bigger than what it holds above the mean and what the receiver lacks,
+         * otherwise the smallest one that still narrows the gap between them. What one DStore can send another only
+         * shrinks as they converge, so the search for the largest resumes where it stopped for the same pair
+         * @param own Files the sending DStore held
+         * @param resume Where the search for the largest file stopped, for each receiver
+         * @return the index of the file, or -1 if none of the candidates looked at can move
+         */
+        private int pick(Candidates own, int[] resume, int from, int to, long[] load, long mean) {
+            long want = Math.min(load[from] - mean, mean - load[to]);
+            long gap = load[from] - load[to];
+
+            int i = own.next(Math.max(own.firstAtMost(want), resume[to]));
+            for (; i < own.files.length; i = own.next(i + 1)) {
+                Placed file = own.files[i];
+                if (!file.holds(from)) {
+                    own.drop(i); //Extra replica removed above
+                } else if (file.size > 0 && !file.holds(to)) {
+                    break;
+                }
+            }
+            resume[to] = i;
+            if (i < own.files.length) {
+                return i;
+            }
+
+            int seen = 0;
+            for (i = own.previous(own.files.length - 1); i >= 0 && seen < SCAN_LIMIT; i = own.previous(i - 1)) {
+                Placed file = own.files[i];
+                if (file.size >= gap) {
+                    break;
+                }
+                if (!file.holds(from)) {
+                    own.drop(i);
+                } else if (file.size > 0 && !file.holds(to)) {
+                    return i;
+                } else {
+                    seen++;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Copies and removals of a rebalance by DStore, with what they cost
+     */
+    static class RebalancePlan {
+        private final Map<Integer, Map<String, List<Integer>>> copies = new HashMap<>(); //Source port, file, target ports
+        private final Map<Integer, List<String>> removals = new HashMap<>();
+        private int copyCount = 0;
+        private int removalCount = 0;
+        private long bytesCopied = 0;
+        private long bytesStored = 0;
+        private long nanos = 0;
+
+        void copy(int source, String fileName, int target, long size) {
+            copies.computeIfAbsent(source, port -> new LinkedHashMap<>()).computeIfAbsent(fileName, name -> new ArrayList<>(1)).add(target);
+            copyCount++;
+            bytesCopied += size;
+        }
+
+        void remove(int port, String fileName) {
+            removals.computeIfAbsent(port, p -> new ArrayList<>()).add(fileName);
+            removalCount++;
+        }
+
+        /**
+         * @param port DStore
+         * @return the fields of its REBALANCE: files_to_send_count file port_count port ... files_to_remove_count file ...
+         */
+        public List<String> fields(Integer port) {
+            Map<String, List<Integer>> sends = copies.getOrDefault(port, Collections.emptyMap());
+            List<String> removes = removals.getOrDefault(port, Collections.emptyList());
+            List<String> fields = new ArrayList<>();
+            fields.add(String.valueOf(sends.size()));
+            for (Map.Entry<String, List<Integer>> send : sends.entrySet()) {
+                fields.add(send.getKey());
+                fields.add(String.valueOf(send.getValue().size()));
+                for (Integer target : send.getValue()) {
+                    fields.add(String.valueOf(target));
+                }
+            }
+            fields.add(String.valueOf(removes.size()));
+            fields.addAll(removes);
+            return fields;
+        }
+
+        /**
+         * @param action Called with every file and the port it is copied to
+         */
+        public void forEachCopy(BiConsumer<String, Integer> action) {
+            for (Map<String, List<Integer>> sends : copies.values()) {
+                for (Map.Entry<String, List<Integer>> send : sends.entrySet()) {
+                    for (Integer target : send.getValue()) {
+                        action.accept(send.getKey(), target);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param action Called with every file and the port it is removed from
+         */
+        public void forEachRemoval(BiConsumer<String, Integer> action) {
+            for (Map.Entry<Integer, List<String>> removes : removals.entrySet()) {
+                for (String fileName : removes.getValue()) {
+                    action.accept(fileName, removes.getKey());
+                }
+            }
+        }
+
+        public int getCopies() {
+            return copyCount;
+        }
+
+        public int getRemovals() {
+            return removalCount;
+        }
+
+        public long getBytesCopied() {
+            return bytesCopied;
+        }
+
+        /**
+         * @return bytes of all replicas once extra and missing ones are dealt with
+         */
+        public long getBytesStored() {
+            return bytesStored;
+        }
+
+        public long getMicros() {
+            return nanos / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return copyCount + " copies, " + bytesCopied + " of " + bytesStored + " bytes, " + removalCount
+                    + " removals, planned in " + getMicros() + " us";
+        }
+    }
+
+    /**
+     * Index entry of one file: state, size, replica ports and the pending acks of its running operation.
+     * The state moves by compare-and-set and the replicas are guarded by the record itself, so operations
+     * on different files never share a lock
+     */
+    class FileRecord {
+        private final AtomicReference<FileState> state;
+        private volatile long size;
+        private volatile PendingAck pending = null;
+        private final IntSet replicas = new IntSet(4); //Ports, changed through the replica index only
+        private int slot = -1; //Slot in the replica index while the file has replicas
+
+        public FileRecord(FileState state, long size) {
+            this.state = new AtomicReference<>(state);
+            this.size = size;
+        }
+
+        public FileState getState() {
+            return state.get();
+        }
+
+        /**
+         * Move the file to a new state
+         * @param from Expected state
+         * @param to New state
+         * @return true if the file was in the expected state
+         */
+        public boolean transition(FileState from, FileState to) {
+            return state.compareAndSet(from, to);
+        }
+
+        /**
+         * @return true if the file is stored, including while it is being removed
+         */
+        public boolean isDurable() {
+            FileState current = state.get();
+            return current == FileState.STORE_COMPLETE || current == FileState.REMOVE_IN_PROGRESS;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public void setSize(long size) {
+            this.size = size;
+        }
+
+        public PendingAck getPending() {
+            return pending;
+        }
+
+        public void setPending(PendingAck pending) {
+            this.pending = pending;
+        }
+
+        synchronized boolean addReplica(int port) {
+            return replicas.add(port);
+        }
+
+        synchronized boolean removeReplica(int port) {
+            return replicas.remove(port);
+        }
+
+        synchronized int replicaCount() {
+            return replicas.size();
+        }
+
+        /**
+         * @return a copy of the replica ports
+         */
+        public synchronized List<Integer> getReplicas() {
+            List<Integer> ports = new ArrayList<>(replicas.size());
+            replicas.forEach(ports::add);
+            return ports;
+        }
+
+        /**
+         * @param connected Tells whether a DStore is connected
+         * @return the replica ports that are connected
+         */
+        public synchronized List<Integer> getReplicas(IntPredicate connected) {
+            List<Integer> ports = new ArrayList<>(replicas.size());
+            replicas.forEach(port -> {
+                if (connected.test(port)) {
+                    ports.add(port);
+                }
+            });
+            return ports;
+        }
+
+        /**
+         * Forget every replica
+         * @return the ports that held a replica
+         */
+        synchronized List<Integer> clearReplicas() {
+            List<Integer> ports = getReplicas();
+            replicas.clear();
+            return ports;
+        }
+    }
+
+    /**
+     * Replicas the other way round from the file records: the files of every DStore, so that dropping or
+     * counting a DStore costs its own files and not the whole index. A file takes an int slot while it has
+     * replicas and every DStore keeps the slots of its files in a primitive set. Freed slots are reused, so the
+     * slot table stays as large as the files with replicas. Every replica change goes through here, which keeps
+     * both directions in step
+     */
+    class ReplicaIndex {
+        private final Map<Integer, IntSet> filesOf = new HashMap<>();
+        private FileRecord[] records = new FileRecord[1024];
+        private String[] names = new String[1024];
+        private int[] freeSlots = new int[64];
+        private int freeCount = 0;
+        private int used = 0; //Slots handed out so far, free or not
+
+        /**
+         * @return true if the replica was not known yet
+         */
+        public synchronized boolean add(String fileName, FileRecord record, int port) {
+            if (!record.addReplica(port)) {
+                return false;
+            }
+            if (record.slot < 0) {
+                record.slot = takeSlot();
+                records[record.slot] = record;
+                names[record.slot] = fileName;
+            }
+            filesOf.computeIfAbsent(port, p -> new IntSet(64)).add(record.slot);
+            return true;
+        }
+
+        /**
+         * @return true if the replica was known
+         */
+        public synchronized boolean remove(FileRecord record, int port) {
+            if (!record.removeReplica(port)) {
+                return false;
+            }
+            IntSet slots = filesOf.get(port);
+            if (slots != null) {
+                slots.remove(record.slot);
+            }
+            if (record.replicaCount() == 0) {
+                freeSlot(record);
+            }
+            return true;
+        }
+
+        /**
+         * Forget every replica of a file
+         * @return the ports that held a replica
+         */
+        public synchronized List<Integer> drop(FileRecord record) {
+            List<Integer> ports = record.clearReplicas();
+            for (Integer port : ports) {
+                IntSet slots = filesOf.get(port);
+                if (slots != null) {
+                    slots.remove(record.slot);
+                }
+            }
+            if (record.slot >= 0) {
+                freeSlot(record);
+            }
+            return ports;
+        }
+
+        /**
+         * Forget every replica on a DStore
+         * @return the files that had a replica there
+         */
+        public synchronized List<String> dropPort(int port) {
+            IntSet slots = filesOf.remove(port);
+            if (slots == null) {
+                return new ArrayList<>();
+            }
+            List<String> held = new ArrayList<>(slots.size());
+            slots.forEach(slot -> {
+                FileRecord record = records[slot];
+                held.add(names[slot]);
+                record.removeReplica(port);
+                if (record.replicaCount() == 0) {
+                    freeSlot(record);
+                }
+            });
+            return held;
+        }
+
+        /**
+         * @return the files with a replica on a DStore
+         */
+        public synchronized List<String> filesOn(int port) {
+            IntSet slots = filesOf.get(port);
+            List<String> held = new ArrayList<>(slots == null ? 0 : slots.size());
+            if (slots != null) {
+                slots.forEach(slot -> held.add(names[slot]));
+            }
+            return held;
+        }
+
+        /**
+         * @return the replicas on a DStore
+         */
+        public synchronized int count(int port) {
+            IntSet slots = filesOf.get(port);
+            return slots == null ? 0 : slots.size();
+        }
+
+        private int takeSlot() {
+            if (freeCount > 0) {
+                return freeSlots[--freeCount];
+            }
+            if (used == records.length) {
+                records = Arrays.copyOf(records, used * 2);
+                names = Arrays.copyOf(names, used * 2);
+            }
+            return used++;
+        }
+
+        private void freeSlot(FileRecord record) {
+            records[record.slot] = null;
+            names[record.slot] = null;
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = record.slot;
+            record.slot = -1;
+        }
+    }
+
+    /**
+     * Set of non-negative ints in one open-addressed table, without boxing. Linear probing, and a removal
+     * shifts back the entries probing past it so that no tombstones build up
+     */
+    static class IntSet {
+        private static final int EMPTY = -1;
+        private int[] table;
+        private int size = 0;
+
+        IntSet(int expected) {
+            int capacity = 4;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            table = new int[capacity];
+            Arrays.fill(table, EMPTY);
+        }
+
+        private int home(int value) {
+            int h = value * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (table.length - 1);
+        }
+
+        public boolean contains(int value) {
+            int mask = table.length - 1;
+            for (int i = home(value); table[i] != EMPTY; i = (i + 1) & mask) {
+                if (table[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean add(int value) {
+            int mask = table.length - 1;
+            int i = home(value);
+            for (; table[i] != EMPTY; i = (i + 1) & mask) {
+                if (table[i] == value) {
+                    return false;
+                }
+            }
+            table[i] = value;
+            if (++size * 2 > table.length) {
+                resize(table.length * 2);
+            }
+            return true;
+        }
+
+        public boolean remove(int value) {
+            int mask = table.length - 1;
+            int i = home(value);
+            while (table[i] != value) {
+                if (table[i] == EMPTY) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            //Move back every later entry of the run whose home is not between the hole and itself
+            for (int j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+                int home = home(table[j]);
+                if (j > i ? (home <= i || home > j) : (home <= i && home > j)) {
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            table[i] = EMPTY;
+            size--;
+            return true;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            Arrays.fill(table, EMPTY);
+            size = 0;
+        }
+
+        public void forEach(IntConsumer action) {
+            for (int value : table) {
+                if (value != EMPTY) {
+                    action.accept(value);
+                }
+            }
+        }
+
+        private void resize(int capacity) {
+            int[] old = table;
+            table = new int[capacity];
+            Arrays.fill(table, EMPTY);
+            size = 0;
+            for (int value : old) {
+                if (value != EMPTY) {
+                    add(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Completion handle of a STORE or REMOVE waiting for acks from DStores
+     */
+    class PendingAck {
+        private final AtomicInteger remaining;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        public PendingAck(int expected) {
+            this.remaining = new AtomicInteger(expected);
+            if (expected == 0) {
+                done.complete(null);
+            }
+        }
+
+        /**
+         * Count one ack, completes the handle when the last expected ack arrives
+         */
+        public void ack() {
+            if (remaining.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+
+        /**
+         * Run a callback on the worker pool once all acks arrive or the deadline passes
+         * @param timeoutMillis Deadline in milliseconds
+         * @param callback Receives true if all acks arrived before the deadline
+         */
+        public void whenDone(long timeoutMillis, Consumer<Boolean> callback) {
+            done.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .whenCompleteAsync((result, error) -> callback.accept(error == null), workers);
+        }
+    }
+
+    /**
+     * Aggregated reply to a batch: collects the files that completed and sends them in one message once
+     * every file of the batch has completed or timed out
+     */
+    class BatchReply {
+        private final Connection client;
+        private final String token;
+        private final AtomicInteger remaining;
+        private final List<String> completed = new ArrayList<>();
+
+        public BatchReply(Connection client, String token, int files) {
+            this.client = client;
+            this.token = token;
+            this.remaining = new AtomicInteger(files);
+            if (files == 0) {
+                send();
+            }
+        }
+
+        /**
+         * One file of the batch is done
+         * @param fileName File name
+         * @param success true if the operation completed for this file
+         */
+        public void finished(String fileName, boolean success) {
+            if (success) {
+                synchronized (completed) {
+                    completed.add(fileName);
+                }
+            }
+            if (remaining.decrementAndGet() == 0) {
+                send();
+            }
+        }
+
+        private void send() {
+            StringBuilder msg = new StringBuilder(token);
+            synchronized (completed) {
+                for (String fileName : completed) {
+                    msg.append(' ').append(fileName);
+                }
+            }
+            client.send(msg.toString());
+            if (logger.isLoggable(Level.INFO)) {
+                logger.info("[" + cport + " -> " + client.getPort() + "] " + token + " " + completed.size() + " files");
+            }
+        }
+    }
+
+    /**
+     * Append-only journal of completed STOREs and REMOVEs, forced to disk before the index changes. Every
+     * COMPACT_EVERY records the journal is rotated and the index is written as a compacted snapshot, so a
+     * restart replays at most one snapshot and two short journals. The rotated journal is only dropped once a
+     * snapshot covers it
+     */
+    class MetadataJournal {
+        private static final int COMPACT_EVERY = 10000;
+        private final File journalFile;
+        private final File rotatedFile;
+        private final File snapshotFile;
+        private final ReentrantLock journalLock = new ReentrantLock();
+        private final AtomicBoolean compacting = new AtomicBoolean(false);
+        private BufferedWriter writer;
+        private FileChannel channel; //Channel of writer, forced after every record
+        private int records = 0;
+
+        public MetadataJournal(String folder) {
+            File metadataFolder = new File(folder);
+            if (!metadataFolder.exists()) {
+                metadataFolder.mkdirs();
+            }
+            this.journalFile = new File(metadataFolder, "journal.log");
+            this.rotatedFile = new File(metadataFolder, "journal.log.1");
+            this.snapshotFile = new File(metadataFolder, "snapshot");
+        }
+
+        /**
+         * Rebuild the file index from the snapshot and the journals, then open the journal for appending
+         */
+        public void recover() throws IOException {
+            var startTime = System.currentTimeMillis();
+            Map<String, Long> recovered = new HashMap<>();
+            replay(snapshotFile, recovered);
+            replay(rotatedFile, recovered);
+            replay(journalFile, recovered);
+            for (Map.Entry<String, Long> entry : recovered.entrySet()) {
+                files.put(entry.getKey(), new FileRecord(FileState.STORE_COMPLETE, entry.getValue()));
+            }
+            openWriter();
+            logger.info("[Controller] Recovered " + recovered.size() + " files from metadata in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+
+        /**
+         * Apply the records of a snapshot or journal file. A line whose checksum does not match, such as a last
+         * line torn by a crash, is ignored
+         * @param file File to be replayed
+         * @param index Sizes of the stored files, updated in place
+         */
+        private void replay(File file, Map<String, Long> index) throws IOException {
+            if (!file.exists()) {
+                return;
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String checked = unseal(line);
+                    if (checked == null) {
+                        logger.info("[System Warning] Skipped torn metadata record: " + line);
+                        continue;
+                    }
+                    String[] record = checked.split(" ");
+                    try {
+                        if (record.length == 3 && record[0].equals(Protocol.STORE_TOKEN)) {
+                            index.put(record[1], Long.parseLong(record[2]));
+                        } else if (record.length == 2 && record[0].equals(Protocol.REMOVE_TOKEN)) {
+                            index.remove(record[1]);
+                        }
+                    } catch (NumberFormatException e) {
+                        logger.info("[System Warning] Skipped torn metadata record: " + line);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param record Record to be written
+         * @return the line of the record, ending with the CRC32C of the record in hex
+         */
+        private String seal(String record) {
+            CRC32C crc = new CRC32C();
+            crc.update(record.getBytes(StandardCharsets.UTF_8));
+            return record + " " + Long.toHexString(crc.getValue());
+        }
+
+        /**
+         * @param line Line read back
+         * @return the record, or null if the line does not end with its checksum
+         */
+        private String unseal(String line) {
+            int end = line.lastIndexOf(' ');
+            if (end < 0) {
+                return null;
+            }
+            String record = line.substring(0, end);
+            return seal(record).equals(line) ? record : null;
+        }
+
+        /**
+         * Journal a completed STORE and apply it to the index
+         * @param fileName File stored
+         * @param fileSize Size of the file
+         * @param apply Index update, run once the record is written
+         */
+        public void recordStore(String fileName, Long fileSize, Runnable apply) {
+            append(Protocol.STORE_TOKEN + " " + fileName + " " + fileSize, apply);
+        }
+
+        /**
+         * Journal a completed REMOVE and apply it to the index
+         * @param fileName File removed
+         * @param apply Index update, run once the record is written
+         */
+        public void recordRemove(String fileName, Runnable apply) {
+            append(Protocol.REMOVE_TOKEN + " " + fileName, apply);
+        }
+
+        /**
+         * Write a record and force it to disk, then apply it. The index is updated once whether or not the
+         * record could be written
+         */
+        private void append(String record, Runnable apply) {
+            Map<String, Long> index = null;
+            journalLock.lock();
+            try {
+                try {
+                    if (writer == null) {
+                        openWriter();
+                    }
+                    writer.write(seal(record));
+                    writer.newLine();
+                    writer.flush();
+                    channel.force(false);
+                    records++;
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "[System Error] Metadata journal write failed: " + record, e);
+                    closeWriter();
+                }
+                apply.run();
+                if (records >= COMPACT_EVERY && compacting.compareAndSet(false, true) && rotate()) {
+                    index = durableSizes();
+                }
+            } finally {
+                journalLock.unlock();
+            }
+
+            if (index != null) {
+                Map<String, Long> snapshot = index;
+                workers.execute(() -> writeSnapshot(snapshot));
+            }
+        }
+
+        /**
+         * Open the journal for appending. Called with journalLock held, or before the journal is shared
+         */
+        private void openWriter() throws IOException {
+            FileOutputStream out = new FileOutputStream(journalFile, true);
+            channel = out.getChannel();
+            writer = new BufferedWriter(new OutputStreamWriter(out));
+        }
+
+        /**
+         * Close the journal, the next record opens it again. Called with journalLock held
+         */
+        private void closeWriter() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "[System Error] Metadata journal close failed", e);
+                }
+                writer = null;
+                channel = null;
+            }
+        }
+
+        /**
+         * Sizes of the stored files, as covered by the journal so far
+         * @return file name to size
+         */
+        private Map<String, Long> durableSizes() {
+            Map<String, Long> index = new HashMap<>();
+            for (Map.Entry<String, FileRecord> entry : files.entrySet()) {
+                if (entry.getValue().isDurable()) {
+                    index.put(entry.getKey(), entry.getValue().getSize());
+                }
+            }
+            return index;
+        }
+
+        /**
+         * Start a new journal. Called with journalLock held, the old journal is kept until the snapshot is
+         * written. If the last snapshot failed, its rotated journal is still there and the journal is added
+         * to it, so that the next snapshot covers both
+         * @return true if the journal was rotated, otherwise compaction is given up until the next records
+         */
+        private boolean rotate() {
+            boolean rotated = false;
+            closeWriter();
+            try {
+                if (!rotatedFile.exists()) {
+                    rotated = journalFile.renameTo(rotatedFile);
+                } else {
+                    try (FileOutputStream out = new FileOutputStream(rotatedFile, true)) {
+                        Files.copy(journalFile.toPath(), out);
+                        out.getChannel().force(false);
+                    }
+                    rotated = journalFile.delete();
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "[System Error] Metadata journal rotation failed", e);
+            } finally {
+                if (rotated) {
+                    records = 0;
+                } else {
+                    compacting.set(false);
+                }
+                try {
+                    openWriter();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "[System Error] Metadata journal reopen failed", e);
+                }
+            }
+            return rotated;
+        }
+
+        /**
+         * Write the index as the new snapshot, then drop the rotated journal it covers
+         * @param index Copy of the index taken when the journal was rotated
+         */
+        private void writeSnapshot(Map<String, Long> index) {
+            File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+            try {
+                try (FileOutputStream out = new FileOutputStream(tmpFile);
+                     BufferedWriter snapshot = new BufferedWriter(new OutputStreamWriter(out))) {
+                    for (Map.Entry<String, Long> entry : index.entrySet()) {
+                        snapshot.write(seal(Protocol.STORE_TOKEN + " " + entry.getKey() + " " + entry.getValue()));
+                        snapshot.newLine();
+                    }
+                    snapshot.flush();
+                    out.getChannel().force(false);
+                }
+                Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                rotatedFile.delete();
+                logger.info("[Controller] Metadata snapshot written: " + index.size() + " files");
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "[System Error] Metadata snapshot failed", e);
+            } finally {
+                compacting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Scheduler to control Rebalance operation, runs every period and on demand
+     */
+     class RebalanceService {
+        private final Integer rebalancePeriod;
+        private final AtomicBoolean pending = new AtomicBoolean(false);
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rebalance");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        public RebalanceService(Integer rebalance_period) {
+            this.rebalancePeriod = rebalance_period;
+        }
+
+        /**
+         * Start the periodic rebalance
+         */
+        public void start() {
+            scheduler.scheduleWithFixedDelay(this::trigger, rebalancePeriod, rebalancePeriod, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Request a rebalance. Triggers arriving before the queued run starts are merged into it
+         */
+        public void trigger() {
+            if (pending.compareAndSet(false, true)) {
+                scheduler.execute(this::run);
+            }
+        }
+
+        private void run() {
+            pending.set(false);
+            try {
+                rebalanceOperation();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "[System Error] Rebalance failed", e);
+            } finally {
+                endRebalance();
+            }
+        }
+     }
+
+    /**
+     * Phi accrual failure detector over the HEARTBEATs of each DStore. The intervals seen so far give a normal
+     * distribution, and phi is -log10 of the chance that the silence since the last heartbeat is still only a
+     * late one. A DStore is dropped once phi passes the threshold, so a half-open connection is noticed in
+     * seconds and the threshold adapts to how regular the heartbeats were. DStores that never sent a heartbeat
+     * are left to their connection
+     */
+    class FailureDetector {
+        private static final double PHI_THRESHOLD = 8; //About one wrong suspicion in 10^8
+        private static final int WINDOW = 100; //Intervals kept per DStore
+        private static final double MIN_STD_DEV_MILLIS = 100;
+        private static final double ACCEPTABLE_PAUSE_MILLIS = 2000; //Silence added to the mean, for GC pauses and busy hosts
+        private static final long CHECK_MILLIS = 100;
+        private final Map<Integer, Arrivals> arrivals = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "failure-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /**
+         * Heartbeat intervals of one DStore, in milliseconds
+         */
+        private class Arrivals {
+            private final double[] intervals = new double[WINDOW];
+            private int count = 0;
+            private int next = 0;
+            private double sum = 0;
+            private double squares = 0;
+            private long last = System.nanoTime();
+
+            synchronized void arrived(long now) {
+                double interval = (now - last) / 1e6;
+                last = now;
+                if (count == WINDOW) {
+                    sum -= intervals[next];
+                    squares -= intervals[next] * intervals[next];
+                } else {
+                    count++;
+                }
+                intervals[next] = interval;
+                next = (next + 1) % WINDOW;
+                sum += interval;
+                squares += interval * interval;
+            }
+
+            synchronized double phi(long now) {
+                if (count == 0) {
+                    return 0;
+                }
+                double mean = sum / count;
+                double stdDev = Math.max(MIN_STD_DEV_MILLIS, Math.sqrt(Math.max(0, squares / count - mean * mean)));
+                double y = ((now - last) / 1e6 - mean - ACCEPTABLE_PAUSE_MILLIS) / stdDev;
+                //Logistic approximation of the normal tail
+                double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+                return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+            }
+        }
+
+        /**
+         * Check every DStore sending heartbeats at a short fixed delay
+         */
+        public void start() {
+            checker.scheduleWithFixedDelay(this::check, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @param port DStore port the HEARTBEAT came from
+         */
+        public void heartbeat(Integer port) {
+            long now = System.nanoTime();
+            Arrivals seen = arrivals.putIfAbsent(port, new Arrivals());
+            if (seen != null) {
+                seen.arrived(now);
+            }
+        }
+
+        /**
+         * @param port DStore port no longer watched
+         */
+        public void forget(Integer port) {
+            arrivals.remove(port);
+        }
+
+        private void check() {
+            long now = System.nanoTime();
+            for (Map.Entry<Integer, Arrivals> entry : arrivals.entrySet()) {
+                double phi = entry.getValue().phi(now);
+                if (phi < PHI_THRESHOLD) {
+                    continue;
+                }
+                Integer port = entry.getKey();
+                logger.warning("[System Error] DStore " + port + " missed its heartbeats, phi " + String.format("%.1f", phi));
+                arrivals.remove(port);
+                DStore dStore = dStoreConnections.get(port);
+                if (dStore != null) {
+                    dropDStore(port, dStore);
+                    dStore.connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Files that lost a replica, repaired without waiting for the next rebalance. Files with the fewest live
+     * replicas go first, as they are the closest to being lost. A live holder copies the file straight to the
+     * DStores replacing the lost replicas with REPAIR and reports those it reached with REPAIR_COMPLETE. A few
+     * repairs run at a time so the copies do not crowd out client traffic, and one that gets no answer is retried
+     */
+    class RepairQueue {
+        private static final int MAX_IN_FLIGHT = 8;
+        private static final int MAX_ATTEMPTS = 3;
+        private final PriorityBlockingQueue<Repair> queue = new PriorityBlockingQueue<>();
+        private final Map<String, Repair> inFlight = new ConcurrentHashMap<>();
+        private final Semaphore slots = new Semaphore(MAX_IN_FLIGHT);
+        private final AtomicLong sequence = new AtomicLong();
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "repair-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /**
+         * One file to repair, ordered by its live replicas when queued, then by age
+         */
+        private class Repair implements Comparable<Repair> {
+            private final String fileName;
+            private final int live;
+            private final int attempt;
+            private final long order = sequence.incrementAndGet();
+
+            Repair(String fileName, int live, int attempt) {
+                this.fileName = fileName;
+                this.live = live;
+                this.attempt = attempt;
+            }
+
+            @Override
+            public int compareTo(Repair other) {
+                return live != other.live ? Integer.compare(live, other.live) : Long.compare(order, other.order);
+            }
+        }
+
+        /**
+         * Start the thread sending repairs
+         */
+        public void start() {
+            Thread worker = new Thread(this::run, "repair");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        /**
+         * Queue the repair of files that lost a replica
+         * @param fileNames Files to be repaired
+         */
+        public void enqueue(List<String> fileNames) {
+            for (String fileName : fileNames) {
+                FileRecord record = files.get(fileName);
+                if (record != null) {
+                    queue.add(new Repair(fileName, record.replicaCount(), 0));
+                }
+            }
+            if (!fileNames.isEmpty()) {
+                logger.info("[Controller] " + fileNames.size() + " files queued for repair");
+            }
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    slots.acquire();
+                    if (!send(queue.take())) {
+                        slots.release();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Ask a live holder to copy the file to the DStores it lacks
+         * @return true if a REPAIR was sent
+         */
+        private boolean send(Repair repair) {
+            FileRecord record = files.get(repair.fileName);
+            if (record == null || record.getState() != FileState.STORE_COMPLETE) {
+                return false;
+            }
+            List<Integer> live = record.getReplicas(dStoreConnections::containsKey);
+            if (live.isEmpty()) {
+                logger.warning("[System Error] No replica left of " + repair.fileName);
+                return false;
+            }
+            int needed = r - live.size();
+            if (needed <= 0 || inFlight.putIfAbsent(repair.fileName, repair) != null) {
+                return false;
+            }
+
+            List<String> fields = new ArrayList<>();
+            fields.add(repair.fileName);
+            for (Integer port : placement.choose(repair.fileName, needed, live)) {
+                if (dStoreConnections.containsKey(port)) {
+                    fields.add(String.valueOf(port));
+                }
+            }
+            DStore source = dStoreConnections.get(loadTracker.choose(live));
+            if (fields.size() == 1 || source == null) {
+                inFlight.remove(repair.fileName);
+                return false;
+            }
+            source.sendDStoreMsg(Protocol.REPAIR_TOKEN, fields);
+            timer.schedule(() -> {
+                if (inFlight.remove(repair.fileName, repair)) {
+                    slots.release();
+                    retry(repair);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        private void retry(Repair repair) {
+            if (repair.attempt + 1 < MAX_ATTEMPTS) {
+                FileRecord record = files.get(repair.fileName);
+                int live = record == null ? 0 : record.replicaCount();
+                queue.add(new Repair(repair.fileName, live, repair.attempt + 1));
+            } else {
+                logger.warning("[System Warning] Repair of " + repair.fileName + " given up, left to the next rebalance");
+            }
+        }
+
+        /**
+         * Count the replicas a REPAIR added, and queue the file again if some are still missing
+         * @param fileName File repaired
+         * @param copied DStores that received the whole file
+         */
+        public void completed(String fileName, List<Integer> copied) {
+            FileRecord record = files.get(fileName);
+            if (record != null && record.getState() == FileState.STORE_COMPLETE) {
+                for (Integer port : copied) {
+                    if (dStoreConnections.containsKey(port)) {
+                        addReplica(fileName, record, port);
+                    }
+                }
+            }
+            Repair repair = inFlight.remove(fileName);
+            if (repair == null) {
+                return;
+            }
+            slots.release();
+            if (record != null && record.replicaCount() < r) {
+                retry(repair);
+            }
+        }
+    }
+
+    /**
+     * A connection to a Client or a DStore, independent of the front end serving it
+     */
+    interface Connection {
+        /**
+         * Send one line to the peer
+         * @param msg message to be sent
+         */
+        void send(String msg);
+
+        /**
+         * Send one encoded frame to the peer
+         * @param frame frame to be sent
+         */
+        void sendFrame(ByteBuffer frame);
+
+        /**
+         * @return the remote port of the connection
+         */
+        Integer getPort();
+
+        /**
+         * Close the connection
+         */
+        void close();
+    }
+
+    /**
+     * Connection served by a blocking socket
+     */
+    class SocketConnection implements Connection {
+        private final Socket socket;
+        private final OutputStream output;
+        private final PrintWriter writer;
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        public SocketConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.output = socket.getOutputStream();
+            this.writer = new PrintWriter(output, true);
+        }
+
+        @Override
+        public void send(String msg) {
+            writeLock.lock();
+            try {
+                writer.println(msg);
+                if (writer.checkError()) {
+                    logger.info("Lost Connection: " + getPort());
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) {
+            writeLock.lock();
+            try {
+                output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                output.flush();
+            } catch (IOException e) {
+                logger.info("Lost Connection: " + getPort());
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public Integer getPort() {
+            return socket.getPort();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Replies to one REQUEST of a client, sent on its connection with the id of the request in front
+     */
+    class TaggedConnection implements Connection {
+        private final Connection connection;
+        private final String prefix;
+
+        public TaggedConnection(Connection connection, String requestId) {
+            this.connection = connection;
+            this.prefix = Protocol.REQUEST_TOKEN + " " + requestId + " ";
+        }
+
+        @Override
+        public void send(String msg) {
+            connection.send(prefix + msg);
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) {
+            connection.sendFrame(frame);
+        }
+
+        @Override
+        public Integer getPort() {
+            return connection.getPort();
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+        }
+    }
+
+    /**
+     * Non-blocking front end. One selector thread accepts and reads all connections,
+     * received lines are handled on the worker pool
+     */
+    class NioFrontEnd {
+        private final Selector selector;
+        private final ServerSocketChannel server;
+
+        public NioFrontEnd(int port) throws IOException {
+            this.selector = Selector.open();
+            this.server = ServerSocketChannel.open();
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        /**
+         * Run the selector loop on the calling thread
+         */
+        public void serve() throws IOException {
+            for (;;) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (CancelledKeyException e) {
+                        //Closed by a worker while selected
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Accept every pending connection
+         */
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(channel, key);
+                key.attach(connection);
+                logger.info("Client: " + channel.getRemoteAddress() + " has connected to DS server.");
+            }
+        }
+    }
+
+    /**
+     * Connection served by the selector. Lines are queued and handled in order by one worker at a time
+     */
+    class NioConnection implements Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Integer port;
+        private final Session session;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8192); //Received bytes not yet split into messages
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private final ConcurrentLinkedQueue<String[]> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private volatile boolean endOfStream = false;
+        private volatile boolean closeHandled = false;
+
+        public NioConnection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.port = channel.socket().getPort();
+            this.session = new Session(this);
+        }
+
+        /**
+         * Read what is available and split it into text lines and frames. Called by the selector thread only
+         */
+        public void read() {
+            int read;
+            try {
+                if (!readBuffer.hasRemaining()) {
+                    //A long line or frame, grow the buffer up to the limit
+                    if (readBuffer.capacity() >= Frames.MAX_MESSAGE) {
+                        throw new IOException("Message longer than " + Frames.MAX_MESSAGE + " bytes");
+                    }
+                    readBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2).put(readBuffer.flip());
+                }
+                read = channel.read(readBuffer);
+                readBuffer.flip();
+                try {
+                    split();
+                } finally {
+                    readBuffer.compact();
+                }
+            } catch (IOException e) {
+                logger.info("Bad input from " + port + ": " + e.getMessage());
+                read = -1;
+            }
+
+            if (read < 0) {
+                key.cancel();
+                endOfStream = true;
+            }
+            schedule();
+        }
+
+        /**
+         * Move every complete message of the read buffer to the inbox
+         */
+        private void split() throws IOException {
+            byte[] bytes = readBuffer.array();
+            while (readBuffer.hasRemaining()) {
+                int start = readBuffer.position();
+                if (bytes[start] == Frames.FRAME_MARKER) {
+                    if (readBuffer.remaining() < 5) {
+                        return;
+                    }
+                    int length = readBuffer.getInt(start + 1);
+                    if (length < 5 || length > Frames.MAX_MESSAGE - 5) {
+                        throw new IOException("Bad frame length " + length);
+                    }
+                    if (readBuffer.remaining() < 5 + length) {
+                        return;
+                    }
+                    ByteBuffer body = readBuffer.duplicate();
+                    body.position(start + 5).limit(start + 5 + length);
+                    inbox.add(Frames.decode(body));
+                    readBuffer.position(start + 5 + length);
+                } else {
+                    int end = start;
+                    while (end < readBuffer.limit() && bytes[end] != '\n') {
+                        end++;
+                    }
+                    if (end == readBuffer.limit()) {
+                        return;
+                    }
+                    int length = end > start && bytes[end - 1] == '\r' ? end - 1 - start : end - start;
+                    inbox.add(new String(bytes, start, length, StandardCharsets.UTF_8).split(" "));
+                    readBuffer.position(end + 1);
+                }
+            }
+        }
+
+        private void schedule() {
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            String[] message;
+            while ((message = inbox.poll()) != null) {
+                try {
+                    session.handle(message);
+                } catch (Exception e) {
+                    logger.info(e.toString());
+                }
+            }
+            if (endOfStream && !closeHandled) {
+                closeHandled = true;
+                session.closed();
+            }
+            draining.set(false);
+            if (!inbox.isEmpty() || (endOfStream && !closeHandled)) {
+                schedule();
+            }
+        }
+
+        @Override
+        public void send(String msg) {
+            sendFrame(StandardCharsets.UTF_8.encode(msg + "\n"));
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer buffer) {
+            synchronized (outbound) {
+                try {
+                    if (outbound.isEmpty()) {
+                        channel.write(buffer);
+                    }
+                    if (buffer.hasRemaining()) {
+                        outbound.add(buffer);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        key.selector().wakeup();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    logger.info("Lost Connection: " + port);
+                }
+            }
+        }
+
+        /**
+         * Write queued messages once the socket is writable. Called by the selector thread only
+         */
+        public void flush() throws IOException {
+            synchronized (outbound) {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer buffer = outbound.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    outbound.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        public Integer getPort() {
+            return port;
+        }
+
+        @Override
+        public void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Thread to keep connection with each client
+     */
+     class SocketThread implements Runnable {
+        Socket client;
+
+        public SocketThread (Socket socket) {
+            this.client = socket;
+        }
+
+         @Override
+         public void run() {
+             Session session = null;
+             try {
+                 session = new Session(new SocketConnection(client));
+                 //Read bytes, not chars, so text lines and frames can follow each other
+                 InputStream clinetRead = new BufferedInputStream(client.getInputStream());
+                 String[] clientInput = null;
+
+                 while ((clientInput = Frames.read(clinetRead)) != null) {
+                     session.handle(clientInput);
+                 }
+             } catch (Exception e) {
+                 logger.info(e.toString());
+             }
+
+             if (session != null) {
+                 session.closed();
+             }
+         }
+     }
+
+    /**
+     * Commands of one connection with a Client or a DStore. Nothing here blocks: operations waiting
+     * for acks or for a rebalance continue from a callback
+     */
+     class Session {
+        private final Connection client;
+        private volatile boolean isDStore = false;
+        private volatile Integer currentDStorePort = -1;
+        private volatile DStore currentDStore = null;
+        private final Map<String, List<Integer>> loadChoosePort = new ConcurrentHashMap<>(); //Ports left to try on RELOAD
+        private final Map<String, Integer> lastLoadPort = new ConcurrentHashMap<>(); //Port of the last LOAD_FROM per file
+
+        public Session(Connection client) {
+            this.client = client;
+        }
+
+        /**
+         * Handle one command line
+         * @param clientInput line received from the connection
+         */
+        public void handle(String clientInput) {
+            handle(clientInput.split(" "));
+        }
+
+        /**
+         * Handle one command, from a text line or a frame
+         * @param commands token followed by the fields
+         */
+        public void handle(String[] commands) {
+            //Client COMMAND: REQUEST id command ..., every reply to the command carries the same prefix so that
+            //a client can keep many commands in flight on this connection and match replies arriving out of order
+            if (commands.length > 2 && commands[0].equals(Protocol.REQUEST_TOKEN)) {
+                handle(Arrays.copyOfRange(commands, 2, commands.length), new TaggedConnection(client, commands[1]));
+                return;
+            }
+            handle(commands, client);
+        }
+
+        /**
+         * Handle one command
+         * @param commands token followed by the fields
+         * @param reply connection the replies to a client command go to
+         */
+        private void handle(String[] commands, Connection reply) {
+
+            //Deal with input commands
+            String commandToken;
+            if (commands.length == 1) {
+                commandToken = commands[0].trim();
+                commands[0] = commandToken;
+            } else {
+                commandToken = commands[0];
+            }
+            Level level = commandToken.equals(Protocol.HEARTBEAT_TOKEN) ? Level.FINE : Level.INFO;
+            if (logger.isLoggable(level)) {
+                logger.log(level, "[" + client.getPort() + " -> " + cport + " ]" + String.join(" ", commands));
+            }
+
+            //Recognize DStore COMMAND: JOIN port [FRAMED version]
+            if (commandToken.equals(Protocol.JOIN_TOKEN)) {
+                Integer joinPort = Integer.parseInt(commands[1]);
+                boolean framed = commands.length >= 4 && commands[2].equals(Protocol.FRAMED_TOKEN)
+                        && Integer.parseInt(commands[3]) == Frames.VERSION;
+                afterRebalance(() -> join(joinPort, framed));
+                return;
+            }
+
+            //Operations with Client (DStore are totally connected)
+            if (!isDStore && dStoreReady.get()) {
+                //----------Client----------
+
+                //COMMAND: LIST
+                if (commandToken.equals(Protocol.LIST_TOKEN)) {
+
+                    if (commands.length != 1) {
+                        logger.info("[System Warning] Wrong LIST COMMAND");
+                        return;
+                    }
+
+                    StringBuilder file_list = new StringBuilder(Protocol.LIST_TOKEN);
+                    for (Map.Entry<String, FileRecord> entry : files.entrySet()) {
+                        if (entry.getValue().getState() == FileState.STORE_COMPLETE) {
+                            file_list.append(' ').append(entry.getKey());
+                        }
+                    }
+                    reply.send(file_list.toString());
+                    logger.info("[" + cport + " -> " + client.getPort() + "] " + file_list);
+
+                }
+
+                //COMMAND: STORE
+                else if (commandToken.equals(Protocol.STORE_TOKEN)) {
+
+                    //Check length of STORE command from Client
+                    if (commands.length != 3) {
+                        logger.info("[System Warning] Wrong STORE COMMAND");
+                        return;
+                    }
+
+                    String fileName = commands[1];
+                    Long fileSize = Long.parseLong(commands[2]);
+
+                    //If fileName duplicates
+                    FileRecord record = new FileRecord(FileState.STORE_IN_PROGRESS, fileSize);
+                    if (files.putIfAbsent(fileName, record) != null) {
+                        reply.send(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                        logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                        return;
+                    }
+
+                    //If Rebalance is working
+                    afterRebalance(1, () -> store(reply, fileName, record, fileSize));
+                }
+
+                //COMMAND: STORE_BATCH name size name size ...
+                else if (commandToken.equals(Protocol.STORE_BATCH_TOKEN)) {
+                    if (commands.length % 2 != 1) {
+                        logger.info("[System Warning] Wrong STORE_BATCH COMMAND");
+                        return;
+                    }
+
+                    //Every size is parsed before any name is reserved, so a rejected command reserves nothing
+                    long[] sizes = new long[commands.length / 2];
+                    try {
+                        for (int i = 1; i < commands.length; i += 2) {
+                            sizes[i / 2] = Long.parseLong(commands[i + 1]);
+                        }
+                    } catch (NumberFormatException e) {
+                        logger.info("[System Warning] Wrong STORE_BATCH COMMAND");
+                        return;
+                    }
+
+                    //Files already in the index are left out of the reply
+                    List<String> names = new ArrayList<>();
+                    List<FileRecord> records = new ArrayList<>();
+                    for (int i = 1; i < commands.length; i += 2) {
+                        FileRecord record = new FileRecord(FileState.STORE_IN_PROGRESS, sizes[i / 2]);
+                        if (files.putIfAbsent(commands[i], record) == null) {
+                            names.add(commands[i]);
+                            records.add(record);
+                        }
+                    }
+                    afterRebalance(names.size(), () -> storeBatch(reply, names, records));
+                }
+
+                //COMMAND: LOAD_BATCH name name ...
+                else if (commandToken.equals(Protocol.LOAD_BATCH_TOKEN)) {
+                    List<String> names = Arrays.asList(commands).subList(1, commands.length);
+                    loadBatch(reply, names);
+                }
+
+                //COMMAND: REMOVE_BATCH name name ...
+                else if (commandToken.equals(Protocol.REMOVE_BATCH_TOKEN)) {
+                    //Files missing or already being removed are left out of the reply
+                    List<String> names = new ArrayList<>();
+                    List<FileRecord> records = new ArrayList<>();
+                    for (int i = 1; i < commands.length; i++) {
+                        FileRecord record = files.get(commands[i]);
+                        if (record != null && record.transition(FileState.STORE_COMPLETE, FileState.REMOVE_IN_PROGRESS)) {
+                            names.add(commands[i]);
+                            records.add(record);
+                        }
+                    }
+                    afterRebalance(names.size(), () -> removeBatch(reply, names, records));
+                }
+
+                //COMMAND: LOAD && RELOAD
+                else if (commandToken.equals(Protocol.LOAD_TOKEN) || commands[0].equals(Protocol.RELOAD_TOKEN)) {
+                    //Check length of LOAD command from Client
+                    if (commands.length != 2) {
+                        logger.info("[System Warning] Wrong LOAD && RELOAD COMMAND");
+                        return;
+                    }
+
+                    //Check file exists
+                    String fileName = commands[1];
+                    FileRecord record = files.get(fileName);
+                    if (record != null && record.getState() == FileState.STORE_COMPLETE) {
+                        //Served during a rebalance too, the replicas only move once it completes
+                        load(reply, commandToken, fileName, record);
+                    } else {
+                        reply.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                        logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                    }
+
+                }
+
+                //COMMAND: LOAD_STRIPED
+                else if (commandToken.equals(Protocol.LOAD_STRIPED_TOKEN)) {
+                    if (commands.length != 2) {
+                        logger.info("[System Warning] Wrong LOAD_STRIPED COMMAND");
+                        return;
+                    }
+
+                    String fileName = commands[1];
+                    FileRecord record = files.get(fileName);
+                    if (record != null && record.getState() == FileState.STORE_COMPLETE) {
+                        loadStriped(reply, record);
+                    } else {
+                        reply.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                        logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                    }
+                }
+
+                //COMMAND: REBALANCE_PLAN, dry run on the index: copies bytes_copied bytes_stored removals micros
+                else if (commandToken.equals(Protocol.REBALANCE_PLAN_TOKEN)) {
+                    RebalancePlan plan = planRebalance();
+                    String msg = Protocol.REBALANCE_PLAN_TOKEN + " " + plan.getCopies() + " " + plan.getBytesCopied() + " "
+                            + plan.getBytesStored() + " " + plan.getRemovals() + " " + plan.getMicros();
+                    reply.send(msg);
+                    logger.info("[" + cport + " -> " + client.getPort() + "] " + msg);
+                }
+
+                //COMMAND: REMOVE
+                else if (commandToken.equals(Protocol.REMOVE_TOKEN)) {
+                    if (commands.length != 2) {
+                        System.err.println("[System Warning] Wrong REMOVE COMMAND");
+                        return;
+                    }
+
+                    String fileName = commands[1];
+
+                    //Only one REMOVE wins the transition
+                    FileRecord record = files.get(fileName);
+                    if (record == null || !record.transition(FileState.STORE_COMPLETE, FileState.REMOVE_IN_PROGRESS)) {
+                        reply.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                        logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                        return;
+                    }
+
+                    //Wait for rebalance
+                    afterRebalance(1, () -> remove(reply, fileName, record));
+                }
+
+            }
+
+            //Operations with Client (DStore aren't totally connected)
+            else if (!isDStore && !dStoreReady.get()) {
+                reply.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            }
+
+            //Operations with DStore
+            else if (isDStore) {
+
+                //COMMAND: STORE_ACK filename
+                if (commandToken.equals(Protocol.STORE_ACK_TOKEN)) {
+                    if (commands.length != 2) {
+                        logger.info("[System Warning] Wrong STORE_ACK Command");
+                    }
+                    storeAcked(commands[1].trim());
+                }
+
+                //COMMAND: STORE_ACK_BATCH filename filename ...
+                else if (commandToken.equals(Protocol.STORE_ACK_BATCH_TOKEN)) {
+                    for (int i = 1; i < commands.length; i++) {
+                        storeAcked(commands[i]);
+                    }
+                }
+
+                //COMMAND: REMOVE_ACK filename
+                else if (commandToken.equals(Protocol.REMOVE_ACK_TOKEN)) {
+                    if (commands.length != 2) {
+                        logger.info("[System Warning] Wrong STORE_ACK Command");
+                    }
+                    removeAcked(commands[1].trim());
+                }
+
+                //COMMAND: REMOVE_ACK_BATCH filename filename ...
+                else if (commandToken.equals(Protocol.REMOVE_ACK_BATCH_TOKEN)) {
+                    for (int i = 1; i < commands.length; i++) {
+                        removeAcked(commands[i]);
+                    }
+                }
+
+                //COMMAND: LOAD_REPORT micros
+                else if (commandToken.equals(Protocol.LOAD_REPORT_TOKEN)) {
+                    try {
+                        loadTracker.finished(currentDStorePort, Long.parseLong(commands[1]));
+                    } catch (RuntimeException e) {
+                        logger.info("[System Warning] Wrong LOAD_REPORT Command");
+                    }
+                }
+
+                //COMMAND: HEARTBEAT
+                else if (commandToken.equals(Protocol.HEARTBEAT_TOKEN)) {
+                    failureDetector.heartbeat(currentDStorePort);
+                }
+
+                //COMMAND: REPAIR_COMPLETE filename port ...
+                else if (commandToken.equals(Protocol.REPAIR_COMPLETE_TOKEN)) {
+                    List<Integer> copied = new ArrayList<>();
+                    for (int i = 2; i < commands.length; i++) {
+                        copied.add(Integer.parseInt(commands[i]));
+                    }
+                    repairQueue.completed(commands[1], copied);
+                }
+
+                //COMMAND: REBALANCE_COMPLETE [file port ...], with the copies that failed
+                else if (commandToken.equals(Protocol.REBALANCE_COMPLETE_TOKEN)) {
+                    logger.info("DStore port:" + currentDStorePort + " REBALANCE COMPELETE!");
+                    for (int i = 1; i + 1 < commands.length; i += 2) {
+                        failedCopies.computeIfAbsent(commands[i], name -> ConcurrentHashMap.newKeySet()).add(Integer.parseInt(commands[i + 1]));
+                        keptReplicas.computeIfAbsent(commands[i], name -> ConcurrentHashMap.newKeySet()).add(currentDStorePort);
+                    }
+                    ackRebalance.countDown();
+                }
+
+                //COMMAND: LIST
+                else if (commandToken.equals(Protocol.LIST_TOKEN)) {
+                    ArrayList<String> fileList = new ArrayList<>(Arrays.asList(commands));
+                    fileList.remove(0);
+
+                    dStoreFiles.put(currentDStorePort, fileList);
+
+                    //Update Valid Load Port, files unknown to the index are left for rebalance to remove
+                    replicaIndex.dropPort(currentDStorePort);
+                    for (String fileName : fileList) {
+                        FileRecord record = files.get(fileName);
+                        if (record != null && record.isDurable()) {
+                            replicaIndex.add(fileName, record, currentDStorePort);
+                        }
+                    }
+                    placement.reset(currentDStorePort, replicaIndex.count(currentDStorePort));
+                    listACK.countDown();
+                }
+            }
+        }
+
+        /**
+         * Count a STORE ack of this DStore
+         * @param fileName File stored
+         */
+        private void storeAcked(String fileName) {
+            //Update File Index State when receive ack
+            FileRecord record = files.get(fileName);
+            PendingAck storeAck = record == null ? null : record.getPending();
+            if (storeAck != null && record.getState() == FileState.STORE_IN_PROGRESS) {
+                addReplica(fileName, record, currentDStorePort);
+                storeAck.ack();
+            } else {
+                logger.info("[Controller] ACK file not exists: " + fileName);
+            }
+        }
+
+        /**
+         * Count a REMOVE ack of this DStore
+         * @param fileName File removed
+         */
+        private void removeAcked(String fileName) {
+            //Update File Index State when receive ack
+            FileRecord record = files.get(fileName);
+            PendingAck removeAck = record == null ? null : record.getPending();
+            if (removeAck != null && record.getState() == FileState.REMOVE_IN_PROGRESS) {
+                removeReplica(record, currentDStorePort);
+                removeAck.ack();
+            } else {
+                logger.info("[Controller] ACK file not exists: " + fileName);
+            }
+        }
+
+        /**
+         * Register the connection as a DStore
+         * @param joinPort port the DStore serves clients on
+         * @param framed true if the DStore asked for framed messages
+         */
+        private void join(Integer joinPort, boolean framed) {
+            //Check duplicate dstore port
+            DStore dStore = new DStore(joinPort, client, framed);
+            if (dStoreConnections.putIfAbsent(joinPort, dStore) != null) {
+                logger.info("[" + client.getPort() + " -> " + cport + " ] Denied! DStore port conflicts!");
+                client.close();
+                return;
+            }
+
+            placement.join(joinPort);
+            currentDStorePort = joinPort;
+            currentDStore = dStore;
+            isDStore = true;
+            countDStore.incrementAndGet();
+            logger.info("Binding DStore port: " + joinPort + " with socket\n" +
+                    "Current connected DStore: " + countDStore.get() + "/" + r);
+
+            //Always a text line, frames follow only if the DStore asked for them
+            client.send(framed ? Protocol.JOIN_SUCCESS_TOKEN + " " + Protocol.FRAMED_TOKEN + " " + Frames.VERSION : Protocol.JOIN_SUCCESS_TOKEN);
+
+            if (countDStore.get() >= r) {
+                logger.info("R DStores are connected, ready for client!");
+                dStoreReady.set(true);
+            }
+            rebalanceService.trigger();
+        }
+
+        /**
+         * Send STORE_TO and complete the STORE once the acks arrive
+         * @param reply connection the replies go to
+         * @param fileName File to be stored
+         * @param record Index entry of the file
+         * @param fileSize Size of the file
+         */
+        private void store(Connection reply, String fileName, FileRecord record, Long fileSize) {
+            //Update file lists
+            PendingAck storeAck = new PendingAck(r);
+            record.setPending(storeAck);
+
+            //Send Msg to client
+            logger.info("[Controller] START TO RECEIVE ACK: " + fileName);
+            List<Integer> ports = chooseStorePorts(fileName, r);
+            String msg = "";
+            for (Integer i : ports) {
+                msg += " " + i;
+            }
+            reply.send(Protocol.STORE_TO_TOKEN + msg);
+            System.out.println("[" + cport + " -> " + client.getPort() + "] " + Protocol.STORE_TO_TOKEN + msg);
+
+            //Complete when r acks arrive or timeout
+            storeAck.whenDone(timeout, acked -> {
+                if (finishStore(fileName, record, fileSize, ports, acked)) {
+                    reply.send(Protocol.STORE_COMPLETE_TOKEN);
+                    logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.STORE_COMPLETE_TOKEN);
+                }
+            });
+        }
+
+        /**
+         * Index a STORE whose acks arrived, or forget it after a timeout and tell its DStores to drop any
+         * partial upload of it
+         * @param fileName File stored
+         * @param record Index entry of the file
+         * @param fileSize Size of the file
+         * @param ports DStores the file was sent to
+         * @param acked true if every ack arrived in time
+         * @return acked
+         */
+        private boolean finishStore(String fileName, FileRecord record, Long fileSize, List<Integer> ports, boolean acked) {
+            record.setPending(null);
+            if (acked) {
+                indexStore(fileName, record, fileSize);
+            } else {
+                logger.info("[System Warning] " + fileName + " Store timeout");
+                dropReplicas(record);
+                files.remove(fileName, record);
+                for (Integer port : ports) {
+                    DStore dStore = dStoreConnections.get(port);
+                    if (dStore != null) {
+                        dStore.sendDStoreMsg(Protocol.STORE_ABORT_TOKEN, Collections.singletonList(fileName));
+                    }
+                }
+            }
+
+            operationsInFlight.decrementAndGet();
+            signalOperationDone();
+            return acked;
+        }
+
+        /**
+         * Response to Client: STORE_BATCH_TO R name port1 ... portR name port1 ... portR ..., with the DStores of
+         * every file placed in one pass, then STORE_BATCH_COMPLETE with the files whose acks all arrived
+         * @param reply connection the replies go to
+         * @param names Files to be stored
+         * @param records Index entries of the files
+         */
+        private void storeBatch(Connection reply, List<String> names, List<FileRecord> records) {
+            List<List<Integer>> placements = placement.chooseBatch(names, r);
+            List<PendingAck> storeAcks = new ArrayList<>(names.size());
+            StringBuilder msg = new StringBuilder(Protocol.STORE_BATCH_TO_TOKEN).append(' ').append(r);
+            for (int i = 0; i < names.size(); i++) {
+                PendingAck storeAck = new PendingAck(r);
+                records.get(i).setPending(storeAck);
+                storeAcks.add(storeAck);
+
+                msg.append(' ').append(names.get(i));
+                for (Integer port : placements.get(i)) {
+                    msg.append(' ').append(port);
+                }
+            }
+            reply.send(msg.toString());
+            logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.STORE_BATCH_TO_TOKEN + " " + names.size() + " files");
+
+            BatchReply complete = new BatchReply(reply, Protocol.STORE_BATCH_COMPLETE_TOKEN, names.size());
+
+            for (int i = 0; i < names.size(); i++) {
+                String fileName = names.get(i);
+                FileRecord record = records.get(i);
+                List<Integer> ports = placements.get(i);
+                storeAcks.get(i).whenDone(timeout, acked -> complete.finished(fileName, finishStore(fileName, record, record.getSize(), ports, acked)));
+            }
+        }
+
+        /**
+         * Response to Client: LOAD_FROM_BATCH name port filesize ..., one DStore per file. Files that do not
+         * exist are left out, RELOAD works on every file of the batch as after a LOAD
+         * @param reply connection the replies go to
+         * @param names Files to be loaded
+         */
+        private void loadBatch(Connection reply, List<String> names) {
+            StringBuilder msg = new StringBuilder(Protocol.LOAD_FROM_BATCH_TOKEN);
+            for (String fileName : names) {
+                FileRecord record = files.get(fileName);
+                if (record == null || record.getState() != FileState.STORE_COMPLETE) {
+                    continue;
+                }
+                List<Integer> ports = record.getReplicas();
+                if (ports.isEmpty()) {
+                    continue;
+                }
+                Integer port = loadTracker.choose(ports);
+                ports.remove(port);
+                loadChoosePort.put(fileName, ports);
+                lastLoadPort.put(fileName, port);
+                loadTracker.started(port);
+                msg.append(' ').append(fileName).append(' ').append(port).append(' ').append(record.getSize());
+            }
+            reply.send(msg.toString());
+            logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.LOAD_FROM_BATCH_TOKEN + " " + names.size() + " files");
+        }
+
+        /**
+         * Response to Client: LOAD_FROM port filesize
+         * @param reply connection the replies go to
+         * @param commandToken LOAD or RELOAD
+         * @param fileName File to be loaded
+         * @param record Index entry of the file
+         */
+        private void load(Connection reply, String commandToken, String fileName, FileRecord record) {
+            List<Integer> ports;
+            if (commandToken.equals(Protocol.LOAD_TOKEN)) {
+                //Start over from every replica of the file, the candidates are a copy owned by this client
+                ports = record.getReplicas();
+                loadChoosePort.put(fileName, ports);
+            } else {
+                // RELOAD, the last port failed for this client
+                ports = loadChoosePort.getOrDefault(fileName, new ArrayList<>());
+                Integer failedPort = lastLoadPort.remove(fileName);
+                if (failedPort != null) {
+                    loadTracker.abandoned(failedPort);
+                }
+            }
+
+            if (ports.isEmpty()) {
+                //Cannot connect to any port, or no replica has announced the file yet
+                loadChoosePort.remove(fileName);
+                reply.send(Protocol.ERROR_LOAD_TOKEN);
+                logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_LOAD_TOKEN);
+            } else {
+                Integer port = loadTracker.choose(ports);
+                ports.remove(port);
+                lastLoadPort.put(fileName, port);
+                loadTracker.started(port);
+                String msg = Protocol.LOAD_FROM_TOKEN + " " + port + " " + record.getSize();
+                reply.send(msg);
+                logger.info("[" + cport + " -> " + client.getPort() + "] " + msg);
+            }
+        }
+
+        /**
+         * Response to Client: LOAD_FROM_ALL filesize port1 port2 ..., every replica from the least loaded on.
+         * The client reads one byte range from each of them, so each counts as a LOAD in flight
+         * @param reply connection the replies go to
+         * @param record Index entry of the file
+         */
+        private void loadStriped(Connection reply, FileRecord record) {
+            List<Integer> ports = record.getReplicas();
+            if (ports.isEmpty()) {
+                reply.send(Protocol.ERROR_LOAD_TOKEN);
+                logger.info("[" + cport + " -> " + client.getPort() + "] " + Protocol.ERROR_LOAD_TOKEN);
+                return;
+            }
+
+            loadTracker.order(ports);
+            StringBuilder msg = new StringBuilder(Protocol.LOAD_FROM_ALL_TOKEN).append(' ').append(record.getSize());
+            for (Integer port : ports) {
+                loadTracker.started(port);
+                msg.append(' ').append(port);
+            }
+            reply.send(msg.toString());
+            logger.info("[" + cport + " -> " + client.getPort() + "] " + msg);
+        }
+
+        /**
+         * Send REMOVE to the DStores holding the file and complete the REMOVE once they all ack. A file with no
+         * known replica goes to every DStore
+         * @param reply connection the replies go to
+         * @param fileName File to be removed
+         * @param record Index entry of the file, already in REMOVE_IN_PROGRESS
+         */
+        private void remove(Connection reply, String fileName, FileRecord record) {
+            List<Integer> targets = record.getReplicas(dStoreConnections::containsKey);
+            if (targets.isEmpty()) {
+                targets = new ArrayList<>(dStoreConnections.keySet());
+            }
+
+            //Register before sending so that early acks are not lost
+            PendingAck removeAck = new PendingAck(targets.size());
+            record.setPending(removeAck);
+
+            //Send REMOVE Command
+            for (Integer port : targets) {
+                DStore dStore = dStoreConnections.get(port);
+                if (dStore != null) {
+                    dStore.sendDStoreMsg(Protocol.REMOVE_TOKEN, List.of(fileName));
+                }
+            }
+
+            //Complete when every target acks or timeout, replicas left behind are removed by the next rebalance
+            removeAck.whenDone(timeout, acked -> {
+                if (finishRemove(fileName, record, acked)) {
+                    reply.send(Protocol.REMOVE_COMPLETE_TOKEN);
+                }
+            });
+        }
+
+        /**
+         * Drop a removed file from the index, whether or not every ack arrived
+         * @param fileName File removed
+         * @param record Index entry of the file
+         * @param acked true if every ack arrived in time
+         * @return acked
+         */
+        private boolean finishRemove(String fileName, FileRecord record, boolean acked) {
+            if (!acked) {
+                logger.info("[Controller] REMOVE timeout. File: "+ fileName);
+            }
+
+            record.setPending(null);
+            dropReplicas(record);
+            indexRemove(fileName);
+            operationsInFlight.decrementAndGet();
+            signalOperationDone();
+            return acked;
+        }
+
+        /**
+         * Send one REMOVE_BATCH to every DStore with the files it holds, then REMOVE_BATCH_COMPLETE to the client
+         * with the files removed from all of their replicas. A file with no known replica goes to every DStore
+         * @param reply connection the replies go to
+         * @param names Files to be removed
+         * @param records Index entries of the files, already in REMOVE_IN_PROGRESS
+         */
+        private void removeBatch(Connection reply, List<String> names, List<FileRecord> records) {
+            BatchReply complete = new BatchReply(reply, Protocol.REMOVE_BATCH_COMPLETE_TOKEN, names.size());
+            Map<Integer, List<String>> perDStore = new HashMap<>();
+            List<PendingAck> removeAcks = new ArrayList<>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                List<Integer> targets = records.get(i).getReplicas(dStoreConnections::containsKey);
+                if (targets.isEmpty()) {
+                    targets = new ArrayList<>(dStoreConnections.keySet());
+                }
+                for (Integer port : targets) {
+                    perDStore.computeIfAbsent(port, p -> new ArrayList<>()).add(names.get(i));
+                }
+
+                //Register before sending so that early acks are not lost
+                PendingAck removeAck = new PendingAck(targets.size());
+                records.get(i).setPending(removeAck);
+                removeAcks.add(removeAck);
+            }
+
+            for (Map.Entry<Integer, List<String>> entry : perDStore.entrySet()) {
+                DStore dStore = dStoreConnections.get(entry.getKey());
+                if (dStore != null) {
+                    dStore.sendDStoreMsg(Protocol.REMOVE_BATCH_TOKEN, entry.getValue());
+                }
+            }
+
+            for (int i = 0; i < names.size(); i++) {
+                String fileName = names.get(i);
+                FileRecord record = records.get(i);
+                removeAcks.get(i).whenDone(timeout, acked -> complete.finished(fileName, finishRemove(fileName, record, acked)));
+            }
+        }
+
+        /**
+         * Clean up after the connection is lost
+         */
+        public void closed() {
+            if (isDStore) {
+                logger.info("[System Error] DStore Disconnected! Port: "+ currentDStorePort);
+                dropDStore(currentDStorePort, currentDStore);
+            } else {
+                logger.info("[System Error] Client Disconnected!");
+            }
+            client.close();
+        }
+     }
 
-             } catch (Exception e) {
-                 if (isDStore) {
-                     logger.info("[System Error] DStore Disconnected! Port: "+ currentDStorePort);
-                     logger.info("[Controller] Current connected DStore: " + countDStore.get() + "/" + this.r);
-                     dStoreConnections.remove(currentDStorePort);
-                     countDStore.decrementAndGet();
-                     if (countDStore.get() < this.r) {
-                         dStoreReady.set(false);
-                     }
-                 }
-                 logger.info(e.toString());
-                 return;
-             }
-         }
-     }
-    
 
 }
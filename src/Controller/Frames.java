@@ -0,0 +1,160 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary framing of protocol messages, negotiated at JOIN between Controller and DStore.
+ * A frame is FRAME_MARKER, the int length of the rest, the opcode byte, the int field count,
+ * then every field as an unsigned short length and its UTF-8 bytes.
+ * Text lines never start with FRAME_MARKER, so a reader tells both apart by the first byte
+ */
+public class Frames {
+    public static final byte FRAME_MARKER = (byte) 0xFB;
+
+    /**
+     * Version of the opcode table, raised whenever OPCODES changes. Both ends only use frames with the same version
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Longest line or frame, the LIST of a DStore with a million files fits
+     */
+    public static final int MAX_MESSAGE = 64 * 1024 * 1024;
+
+    /**
+     * Opcodes of the tokens, the index in this array
+     */
+    private static final String[] OPCODES = {
+            Protocol.LIST_TOKEN, Protocol.STORE_TOKEN, Protocol.LOAD_TOKEN, Protocol.LOAD_DATA_TOKEN,
+            Protocol.RELOAD_TOKEN, Protocol.REMOVE_TOKEN, Protocol.STORE_TO_TOKEN, Protocol.STORE_CHAIN_TOKEN,
+            Protocol.STORE_COMPLETE_TOKEN, Protocol.LOAD_FROM_TOKEN, Protocol.LOAD_REPORT_TOKEN,
+            Protocol.REMOVE_COMPLETE_TOKEN, Protocol.REBALANCE_TOKEN, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN,
+            Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN,
+            Protocol.ERROR_LOAD_TOKEN, Protocol.ACK_TOKEN, Protocol.STORE_ACK_TOKEN, Protocol.REMOVE_ACK_TOKEN,
+            Protocol.JOIN_TOKEN, Protocol.JOIN_SUCCESS_TOKEN, Protocol.REBALANCE_STORE_TOKEN,
+            Protocol.REBALANCE_COMPLETE_TOKEN, Protocol.STORE_RESUME_TOKEN, Protocol.LOAD_STRIPED_TOKEN,
+            Protocol.LOAD_FROM_ALL_TOKEN, Protocol.STORE_BATCH_TOKEN, Protocol.LOAD_BATCH_TOKEN,
+            Protocol.REMOVE_BATCH_TOKEN, Protocol.STORE_BATCH_TO_TOKEN, Protocol.STORE_BATCH_COMPLETE_TOKEN,
+            Protocol.LOAD_FROM_BATCH_TOKEN, Protocol.REMOVE_BATCH_COMPLETE_TOKEN, Protocol.STORE_ACK_BATCH_TOKEN,
+            Protocol.REMOVE_ACK_BATCH_TOKEN, Protocol.REQUEST_TOKEN, Protocol.REBALANCE_PLAN_TOKEN,
+            Protocol.HEARTBEAT_TOKEN, Protocol.REPAIR_TOKEN, Protocol.REPAIR_COMPLETE_TOKEN,
+            Protocol.STORE_ABORT_TOKEN
+    };
+
+    private static final Map<String, Integer> CODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < OPCODES.length; i++) {
+            CODES.put(OPCODES[i], i);
+        }
+    }
+
+    /**
+     * Encode a message as a frame
+     * @param token Token of the message
+     * @param fields Fields after the token
+     * @return the frame, ready to be written
+     */
+    public static ByteBuffer encode(String token, List<String> fields) {
+        Integer opcode = CODES.get(token);
+        if (opcode == null) {
+            throw new IllegalArgumentException("No opcode for " + token);
+        }
+
+        byte[][] encoded = new byte[fields.size()][];
+        int length = 1 + 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = fields.get(i).getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > 0xFFFF) {
+                throw new IllegalArgumentException("Field too long: " + encoded[i].length + " bytes");
+            }
+            length += 2 + encoded[i].length;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(1 + 4 + length);
+        frame.put(FRAME_MARKER).putInt(length).put((byte) opcode.intValue()).putInt(encoded.length);
+        for (byte[] field : encoded) {
+            frame.putShort((short) field.length).put(field);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Decode the body of a frame, the bytes after the length
+     * @param body Body of the frame
+     * @return the token followed by the fields, as a text line split on spaces would be
+     */
+    public static String[] decode(ByteBuffer body) throws IOException {
+        int opcode = body.get() & 0xFF;
+        if (opcode >= OPCODES.length) {
+            throw new IOException("Unknown opcode " + opcode);
+        }
+
+        int count = body.getInt();
+        if (count < 0 || count > body.remaining() / 2) {
+            throw new IOException("Bad field count " + count);
+        }
+        String[] message = new String[count + 1];
+        message[0] = OPCODES[opcode];
+        for (int i = 1; i <= count; i++) {
+            int size = body.getShort() & 0xFFFF;
+            if (size > body.remaining()) {
+                throw new IOException("Bad field size " + size);
+            }
+            if (body.hasArray()) {
+                message[i] = new String(body.array(), body.arrayOffset() + body.position(), size, StandardCharsets.UTF_8);
+                body.position(body.position() + size);
+            } else {
+                byte[] field = new byte[size];
+                body.get(field);
+                message[i] = new String(field, StandardCharsets.UTF_8);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Read the next message from a stream, framed or text
+     * @param in Input stream, buffered, not shared with a Reader
+     * @return the token followed by the fields, null at the end of the stream
+     */
+    public static String[] read(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+
+        if ((byte) first == FRAME_MARKER) {
+            DataInputStream data = new DataInputStream(in);
+            int length = data.readInt();
+            if (length < 5 || length > MAX_MESSAGE - 5) {
+                throw new IOException("Bad frame length " + length);
+            }
+            byte[] body = new byte[length];
+            data.readFully(body);
+            return decode(ByteBuffer.wrap(body));
+        }
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = first; b != '\n'; b = in.read()) {
+            if (b < 0) {
+                break;
+            }
+            if (line.size() >= MAX_MESSAGE) {
+                throw new IOException("Message longer than " + MAX_MESSAGE + " bytes");
+            }
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        if (text.endsWith("\r")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        return text.split(" ");
+    }
+}
@@ -1,10 +1,46 @@
 import java.io.*;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -16,9 +52,29 @@ public class Dstore {
     private final int timeout;
     private String file_folder;
     private String filePath;
+    private String partialPath; //Resumable uploads in progress, next to the folder
     private boolean controllerConnected = false;
-    private ConcurrentHashMap<String, Integer> fileList = new ConcurrentHashMap<>();
+    private boolean framed = false;
+    private volatile boolean controllerFramed = false; //Frames agreed with the controller at JOIN
+    private OutputStream controllerOut;
+    private final ReentrantLock controllerLock = new ReentrantLock(); //Serializes messages to the controller
+    private boolean virtualThreads = false;
+    private boolean keepFiles = false;
+    private Manifest manifest = null;
+    private ReadCache readCache = null; //Hot files kept in memory, when a budget is given
+    private long segmentThreshold = 0;
+    private SegmentStore segments = null; //Small files appended to segments, when a threshold is given
+    private int rebalanceThreads = 4;
+    private ExecutorService rebalanceTransfers; //Copies of REBALANCE, off the controller connection
+    private TokenBucket rebalanceLimit = null; //Bytes per second of rebalance copies, when a cap is given
+    private long heartbeatInterval = 1000;
+    private ScheduledExecutorService heartbeats; //Sends HEARTBEAT once joined
+    private ConcurrentHashMap<String, Long> fileList = new ConcurrentHashMap<>();
+    private final Set<String> uploading = ConcurrentHashMap.newKeySet(); //Partial files being written
+    private final AtomicLong receiving = new AtomicLong(); //Numbers the temporary files of transfers
     public static final Logger logger = Logger.getLogger(Logger.class.toString());
+    private static final long TRANSFER_CHUNK = 64 * 1024; // bytes moved per transfer step
+    private static final long RESUME_CHUNK = 4 * 1024 * 1024; // bytes committed at a time by STORE_RESUME
 
     /**
      * @param port Dstore port
@@ -48,6 +104,104 @@ public class Dstore {
         }
     }
 
+    /**
+     * Serve connections on virtual threads instead of platform threads
+     * @param virtualThreads true to use virtual threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Ask the controller for binary framed messages at JOIN
+     * @param framed true to ask for frames
+     */
+    public void setFramed(boolean framed) {
+        this.framed = framed;
+    }
+
+    /**
+     * Keep the files of the folder on start and announce them to the controller on JOIN.
+     * Files are checked against the sidecar manifest, anything that does not match is deleted
+     * @param keepFiles true to keep stored files across restarts
+     */
+    public void setKeepFiles(boolean keepFiles) {
+        this.keepFiles = keepFiles;
+    }
+
+    /**
+     * Keep recently loaded files in memory, up to a byte budget
+     * @param budget Bytes of file contents held at most, 0 to read every LOAD_DATA from disk
+     */
+    public void setCacheBudget(long budget) {
+        this.readCache = budget > 0 ? new ReadCache(budget) : null;
+    }
+
+    /**
+     * Keep files up to a size in memory-mapped segments instead of one plain file each
+     * @param threshold Largest file kept in segments, 0 to store every file as a plain file
+     */
+    public void setSegmentThreshold(long threshold) {
+        this.segmentThreshold = threshold;
+    }
+
+    /**
+     * Copy the files of a REBALANCE to their new Dstores on this many threads
+     * @param threads Copies in flight at most
+     */
+    public void setRebalanceThreads(int threads) {
+        this.rebalanceThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Cap the bandwidth taken by rebalance copies, so that they do not starve client loads
+     * @param bytesPerSecond Bytes per second sent by all copies together, 0 for no cap
+     */
+    public void setRebalanceRate(long bytesPerSecond) {
+        this.rebalanceLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+    }
+
+    /**
+     * Send HEARTBEAT to the controller at an interval once joined, so that it notices a Dstore gone silent
+     * without waiting for the connection to fail
+     * @param millis Interval in milliseconds, 0 to send none
+     */
+    public void setHeartbeatInterval(long millis) {
+        this.heartbeatInterval = millis;
+    }
+
+    /**
+     * Start sending heartbeats, if enabled and not started yet
+     */
+    private synchronized void startHeartbeats() {
+        if (heartbeatInterval <= 0 || heartbeats != null) {
+            return;
+        }
+        heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleAtFixedRate(() -> {
+            if (controllerConnected) {
+                sendController(Protocol.HEARTBEAT_TOKEN);
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Executor starting one virtual thread per task. Falls back to platform threads before Java 21
+     * @return the executor
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.info("Virtual threads need Java 21, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     /**
      * Method to start controller
      */
@@ -63,22 +217,51 @@ public class Dstore {
         
         //Initialise DStore folder
         filePath = folder.getAbsolutePath();
-        clearFolder(folder);
+        File partialFolder = new File(filePath + ".partial");
+        partialFolder.mkdir();
+        partialPath = partialFolder.getAbsolutePath();
+        if (keepFiles) {
+            loadFolder(folder);
+            //Transfers cut short by the last stop, only resumable uploads are kept
+            for (File tmp : partialFolder.listFiles((dir, name) -> name.endsWith(".tmp"))) {
+                tmp.delete();
+            }
+        } else {
+            clearFolder(folder);
+            clearFolder(partialFolder);
+        }
 
         try {
+            if (segmentThreshold > 0) {
+                segments = new SegmentStore(new File(filePath + ".segments"), segmentThreshold);
+                if (keepFiles) {
+                    fileList.putAll(segments.recover());
+                } else {
+                    segments.clear();
+                }
+            }
+
             logger.info("DStore Port: " + port);
+            ExecutorService connectionThreads = virtualThreads ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+            rebalanceTransfers = Executors.newFixedThreadPool(rebalanceThreads);
             Socket controller = new Socket(InetAddress.getByName("localhost"), cport);
+            //Acks are flushed as they are due, large batch frames must not wait for the previous segment's ACK
+            controller.setTcpNoDelay(true);
+            controllerOut = new BufferedOutputStream(controller.getOutputStream());
             logger.info("Controller Connected.\nPort: " + cport);
 
-            new ControllerThread(controller).start();
+            connectionThreads.execute(new ControllerThread(controller));
 
             logger.info("Ready for Clinet Thread");
-            ServerSocket serverSocket = new ServerSocket(port);
+            //Accept through a channel so that client sockets support zero-copy transfers
+            ServerSocketChannel serverSocket = ServerSocketChannel.open();
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverSocket.bind(new InetSocketAddress(port));
             
             while(true) {
                 logger.info("Waiting for Client to Join!");
-                Socket client = serverSocket.accept();
-                new ClientThread(client, controller).start();
+                SocketChannel client = serverSocket.accept();
+                connectionThreads.execute(new ClientThread(client.socket(), controller));
             }
 
         } catch (Exception e) {
@@ -86,6 +269,193 @@ public class Dstore {
         }
     }
 
+    /**
+     * Method to index the files already in a folder. Every file is verified in parallel against the manifest
+     * @param folder The folder to be indexed
+     */
+    public void loadFolder(File folder) {
+        logger.info("Loading Folder: " + folder.getName());
+        var startTime = System.currentTimeMillis();
+        manifest = new Manifest(file_folder);
+        Map<String, long[]> recorded = manifest.read();
+        Map<String, long[]> verified = new ConcurrentHashMap<>();
+        AtomicInteger discarded = new AtomicInteger();
+
+        ExecutorService scanners = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<?>> scans = new ArrayList<>();
+            for (File file : folder.listFiles()) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                scans.add(scanners.submit(() -> {
+                    long[] entry = recorded.get(file.getName());
+                    try {
+                        if (entry != null && entry[0] == file.length() && entry[1] == checksum(file)) {
+                            verified.put(file.getName(), entry);
+                            fileList.put(file.getName(), entry[0]);
+                            return;
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Cannot verify " + file.getName(), e);
+                    }
+                    //Unknown, partial or corrupted file
+                    file.delete();
+                    discarded.incrementAndGet();
+                }));
+            }
+            for (Future<?> scan : scans) {
+                scan.get();
+            }
+            manifest.rewrite(verified);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Folder scan failed", e);
+        } finally {
+            scanners.shutdown();
+        }
+        logger.info("Loaded " + fileList.size() + " files, discarded " + discarded.get() + " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * CRC32C of a file
+     * @param file File to be read
+     * @return the checksum
+     */
+    static long checksum(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        checksum(file, file.length(), crc);
+        return crc.getValue();
+    }
+
+    /**
+     * Add the first bytes of a file to a CRC32C
+     * @param file File to be read
+     * @param length Bytes to be read
+     * @param crc Checksum to be updated
+     */
+    static void checksum(File file, long length, CRC32C crc) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) TRANSFER_CHUNK);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Add a received file to the file list, and to the manifest when files are kept
+     * @param fileName File stored
+     * @param fileSize Size of the file
+     * @param checksum CRC32C of the file, computed while it was received
+     */
+    private void stored(String fileName, long fileSize, long checksum) throws IOException {
+        if (readCache != null) {
+            readCache.invalidate(fileName);
+        }
+        if (segments != null) {
+            segments.remove(fileName);
+        }
+        if (manifest != null) {
+            manifest.add(fileName, fileSize, checksum);
+        }
+        fileList.put(fileName, fileSize);
+    }
+
+    /**
+     * Add a file appended to the segments to the file list, dropping any plain copy of it
+     * @param fileName File stored
+     * @param fileSize Size of the file
+     */
+    private void storedInSegment(String fileName, long fileSize) {
+        if (readCache != null) {
+            readCache.invalidate(fileName);
+        }
+        if (new File(filePath + File.separator + fileName).delete() && manifest != null) {
+            manifest.drop(fileName);
+        }
+        fileList.put(fileName, fileSize);
+    }
+
+    /**
+     * Keep a file received as a plain file, moving it into the segments if it is small enough
+     * @param fileName File stored
+     * @param file The received file
+     * @param fileSize Size of the file
+     * @param checksum CRC32C of the file
+     */
+    private void keep(String fileName, File file, long fileSize, long checksum) throws IOException {
+        if (segments != null && segments.accepts(fileSize)) {
+            segments.put(fileName, ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            storedInSegment(fileName, fileSize);
+        } else {
+            stored(fileName, fileSize, checksum);
+        }
+    }
+
+    /**
+     * Drop a deleted file from the file list, and from the manifest when files are kept
+     * @param fileName File deleted
+     */
+    private void deleted(String fileName) {
+        if (readCache != null) {
+            readCache.invalidate(fileName);
+        }
+        if (fileList.remove(fileName) != null && manifest != null) {
+            manifest.drop(fileName);
+        }
+    }
+
+    /**
+     * Send a message to the controller, as a frame once agreed at JOIN. Safe to call from any thread
+     * @param token Token of the message
+     * @param fields Fields after the token
+     */
+    private void sendController(String token, List<String> fields) {
+        controllerLock.lock();
+        try {
+            if (controllerFramed) {
+                ByteBuffer frame = Frames.encode(token, fields);
+                controllerOut.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            } else {
+                StringBuilder msg = new StringBuilder(token);
+                for (String field : fields) {
+                    msg.append(' ').append(field);
+                }
+                controllerOut.write(msg.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+            }
+            controllerOut.flush();
+        } catch (IOException e) {
+            logger.info("Lost connection with Controller: " + e.getMessage());
+        } finally {
+            controllerLock.unlock();
+        }
+        //One HEARTBEAT a second would drown the rest of the log
+        Level level = token.equals(Protocol.HEARTBEAT_TOKEN) ? Level.FINE : Level.INFO;
+        if (logger.isLoggable(level)) {
+            logger.log(level, "[" + port + " -> " + cport + "] " + token + " " + String.join(" ", fields));
+        }
+    }
+
+    private void sendController(String token, String... fields) {
+        sendController(token, Arrays.asList(fields));
+    }
+
+    /**
+     * LIST message with every file held by this DStore
+     */
+    private void sendList() {
+        sendController(Protocol.LIST_TOKEN, new ArrayList<>(fileList.keySet()));
+    }
+
     /**
      * Method to clear a folder
      * @param folder The folder to be cleared
@@ -101,10 +471,435 @@ public class Dstore {
         }
     }
 
+    /**
+     * Stream exactly size bytes from a client into a file, one bounded chunk at a time, checksumming them
+     * on the way. The chunks go through a buffer rather than FileChannel.transferFrom so that the checksum
+     * sees every byte. Each read must make progress within the socket timeout, otherwise the transfer is abandoned
+     * @param in Input stream of the client socket
+     * @param file File to be written
+     * @param size Number of bytes to receive
+     * @param crc Checksum updated with the bytes received
+     * @return true if the whole file arrived, false if the client stalled or disconnected
+     */
+    private boolean receiveFile(InputStream in, File file, long size, CRC32C crc) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) TRANSFER_CHUNK);
+        File tmp = receivingFile(file);
+        long position = 0;
+
+        try (FileChannel target = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (position < size) {
+                buffer.clear().limit((int) Math.min(TRANSFER_CHUNK, size - position));
+                int read = source.read(buffer);
+                if (read <= 0) {
+                    break;
+                }
+                buffer.flip();
+                crc.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                position += read;
+            }
+        } catch (SocketTimeoutException e) {
+            logger.info("Transfer of " + file.getName() + " timed out after " + position + "/" + size + " bytes");
+        } finally {
+            if (position < size) {
+                tmp.delete();
+            }
+        }
+
+        if (position < size) {
+            return false;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Temporary file a transfer is written to, renamed into the folder once complete so that a LOAD or a
+     * rebalance copy never reads a file still arriving
+     * @param file Final file
+     * @return a file of the partial folder, not used by any other transfer
+     */
+    private File receivingFile(File file) {
+        return new File(partialPath, file.getName() + "." + receiving.incrementAndGet() + ".tmp");
+    }
+
+    /**
+     * Receive a stored file, into the segments when it is small enough, otherwise as a plain file
+     * @param in Input stream of the client socket
+     * @param fileName File name
+     * @param fileSize Number of bytes to receive
+     * @return true if the whole file arrived and was kept
+     */
+    private boolean receiveAndKeep(InputStream in, String fileName, long fileSize) throws IOException {
+        if (segments != null && segments.accepts(fileSize)) {
+            ByteBuffer contents = receiveBuffer(in, fileName, (int) fileSize);
+            if (contents == null) {
+                return false;
+            }
+            segments.put(fileName, contents);
+            storedInSegment(fileName, fileSize);
+            return true;
+        }
+
+        File file = new File(filePath + File.separator + fileName);
+        CRC32C crc = new CRC32C();
+        if (!receiveFile(in, file, fileSize, crc)) {
+            return false;
+        }
+        stored(fileName, fileSize, crc.getValue());
+        return true;
+    }
+
+    /**
+     * Receive a small file straight into memory
+     * @param in Input stream of the client socket
+     * @param fileName File name, for logging
+     * @param size Number of bytes to receive
+     * @return the contents, or null if the client stalled or disconnected
+     */
+    private ByteBuffer receiveBuffer(InputStream in, String fileName, int size) throws IOException {
+        byte[] contents = new byte[size];
+        try {
+            new DataInputStream(in).readFully(contents);
+        } catch (SocketTimeoutException | EOFException e) {
+            logger.info("Transfer of " + fileName + " stopped before " + size + " bytes");
+            return null;
+        }
+        return ByteBuffer.wrap(contents);
+    }
+
+    /**
+     * Stream the rest of a resumable upload into its partial file, from the last committed chunk onwards.
+     * Every RESUME_CHUNK bytes are forced to disk, so a later STORE_RESUME can carry on from there
+     * @param in Input stream of the client socket
+     * @param partial Partial file, truncated to offset first
+     * @param offset Committed bytes already in the partial file
+     * @param size Size of the whole file
+     * @param crc Checksum of the committed bytes, updated with the bytes received
+     * @return true if the whole file arrived, false if the client stalled or disconnected
+     */
+    private boolean receiveChunks(InputStream in, File partial, long offset, long size, CRC32C crc) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) TRANSFER_CHUNK);
+        long position = offset;
+
+        try (FileChannel target = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            target.truncate(offset);
+            while (position < size) {
+                long chunkEnd = Math.min(size, (position / RESUME_CHUNK + 1) * RESUME_CHUNK);
+                buffer.clear().limit((int) Math.min(buffer.capacity(), chunkEnd - position));
+                if (source.read(buffer) < 0) {
+                    break;
+                }
+                buffer.flip();
+                crc.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer, position);
+                }
+                if (position == chunkEnd) {
+                    target.force(false);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            logger.info("Transfer of " + partial.getName() + " timed out after " + position + "/" + size + " bytes");
+        }
+        return position == size;
+    }
+
+    /**
+     * Delete the partial uploads of a file, except those still being written
+     * @param fileName File whose STORE was given up
+     */
+    private void dropPartials(String fileName) {
+        File[] partials = new File(partialPath).listFiles();
+        if (partials == null) {
+            return;
+        }
+        for (File partial : partials) {
+            //name.size.checksum.part
+            String name = partial.getName();
+            if (name.startsWith(fileName + ".") && name.substring(fileName.length() + 1).matches("\\d+\\.\\p{XDigit}+\\.part")
+                    && !uploading.contains(name) && partial.delete()) {
+                logger.info("Dropped partial upload " + name);
+            }
+        }
+    }
+
+    /**
+     * Bytes of a partial file that can be kept by a resumed upload: whole chunks only
+     * @param partial Partial file
+     * @param size Size of the whole file
+     * @return the offset to resume from
+     */
+    private static long committedLength(File partial, long size) {
+        long length = partial.length();
+        if (length >= size) {
+            return length == size ? size : 0;
+        }
+        return length / RESUME_CHUNK * RESUME_CHUNK;
+    }
+
+    /**
+     * Stream exactly size bytes from a client into a file, passing each chunk on to the next DStore of a
+     * STORE_CHAIN as it is written. A next hop that fails, or takes no bytes for the timeout, stops the
+     * transfer: the local copy is discarded and the caller closes the client, which fails the hop before
+     * @param in Input stream of the client socket
+     * @param file File to be written
+     * @param size Number of bytes to receive
+     * @param next Socket of the next DStore, or null at the end of the chain
+     * @param crc Checksum updated with the bytes received
+     * @return true if the whole file arrived, false if the client stalled or disconnected
+     */
+    private boolean receiveAndForward(InputStream in, File file, long size, Socket next, CRC32C crc) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        SocketChannel forward = next == null ? null : next.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) TRANSFER_CHUNK);
+        File tmp = receivingFile(file);
+        long position = 0;
+
+        try (FileChannel target = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Selector writable = forward == null ? null : Selector.open()) {
+            if (forward != null) {
+                forward.configureBlocking(false);
+                forward.register(writable, SelectionKey.OP_WRITE);
+            }
+            while (position < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(TRANSFER_CHUNK, size - position));
+                int read = source.read(buffer);
+                if (read <= 0) {
+                    break;
+                }
+                buffer.flip();
+                crc.update(buffer.duplicate());
+
+                if (forward != null) {
+                    try {
+                        forward(forward, writable, buffer.duplicate());
+                    } catch (IOException e) {
+                        logger.info("Next hop of " + file.getName() + " failed after " + position + " bytes: " + e.getMessage());
+                        next.close();
+                        break;
+                    }
+                }
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                position += read;
+            }
+        } catch (SocketTimeoutException e) {
+            logger.info("Transfer of " + file.getName() + " timed out after " + position + "/" + size + " bytes");
+        } finally {
+            if (position < size) {
+                tmp.delete();
+            }
+        }
+
+        if (position < size) {
+            return false;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Write a chunk to the next hop of a STORE_CHAIN, which must take some of it within the timeout
+     * @param forward Non-blocking channel of the next hop
+     * @param writable Selector the channel is registered with for writes
+     * @param chunk Bytes to be written
+     */
+    private void forward(SocketChannel forward, Selector writable, ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            if (forward.write(chunk) == 0) {
+                if (writable.select(timeout) == 0) {
+                    throw new SocketTimeoutException("no bytes taken in " + timeout + " ms");
+                }
+                writable.selectedKeys().clear();
+            }
+        }
+    }
+
+    /**
+     * Open the next hop of a STORE_CHAIN and pass it the rest of the chain
+     * @param fileName File to be stored
+     * @param fileSize Size of the file
+     * @param ports Remaining DStores of the chain, the first one is connected
+     * @return the socket, ready for data, or null if the next hop did not answer ACK
+     */
+    private Socket openNextHop(String fileName, long fileSize, String[] ports) {
+        StringBuilder command = new StringBuilder(Protocol.STORE_CHAIN_TOKEN).append(' ').append(fileName).append(' ').append(fileSize);
+        for (int i = 1; i < ports.length; i++) {
+            command.append(' ').append(ports[i]);
+        }
+
+        Socket next = null;
+        try {
+            next = SocketChannel.open(new InetSocketAddress(InetAddress.getByName("localhost"), Integer.parseInt(ports[0]))).socket();
+            next.setSoTimeout(timeout);
+            PrintWriter outNext = new PrintWriter(next.getOutputStream(), true);
+            BufferedReader inNext = new BufferedReader(new InputStreamReader(next.getInputStream()));
+            outNext.println(command);
+            logger.info("[" + port + " -> " + ports[0] + "] " + command);
+            if (Protocol.ACK_TOKEN.equals(inNext.readLine())) {
+                return next;
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.info("Cannot open next hop " + ports[0] + " for " + fileName + ": " + e);
+        }
+
+        if (next != null) {
+            try {
+                next.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tell the controller that a LOAD_DATA finished and how long it took to serve
+     * @param startTime System.nanoTime() when the request arrived
+     */
+    private void reportLoad(long startTime) {
+        long micros = (System.nanoTime() - startTime) / 1000;
+        sendController(Protocol.LOAD_REPORT_TOKEN, String.valueOf(micros));
+    }
+
+    /**
+     * Send a whole file to a client
+     * @param source Channel of the file to be sent
+     * @param client Client socket
+     * @param fileName Name of the file, for logging
+     */
+    private void sendFile(FileChannel source, Socket client, String fileName) throws IOException {
+        sendFile(source, client, fileName, 0, source.size());
+    }
+
+    /**
+     * Send a byte range of a file to a client. Uses sendfile through the socket channel when there is one.
+     * Progress is logged every 10% at FINE level only
+     * @param source Channel of the file to be sent
+     * @param client Client socket
+     * @param fileName Name of the file, for logging
+     * @param offset First byte to send
+     * @param length Number of bytes to send
+     */
+    private void sendFile(FileChannel source, Socket client, String fileName, long offset, long length) throws IOException {
+        WritableByteChannel target = client.getChannel() != null ? client.getChannel() : Channels.newChannel(client.getOutputStream());
+        long size = offset + length;
+        long position = offset;
+        long nextReport = offset + length / 10;
+
+        while (position < size) {
+            long transferred = source.transferTo(position, size - position, target);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+
+            if (position >= nextReport && logger.isLoggable(Level.FINE)) {
+                logger.fine(fileName + " | " + (100 * (position - offset) / length) + "% |");
+                nextReport = position + length / 10;
+            }
+        }
+    }
+
+    /**
+     * Range asked by a LOAD_DATA, the whole file unless offset and length are given
+     * @param commands LOAD_DATA command
+     * @param size Size of the file
+     * @return offset and length, clipped to the file, or null if the offset is out of bounds
+     */
+    private static long[] loadRange(String[] commands, long size) {
+        if (commands.length != 4) {
+            return new long[]{0, size};
+        }
+        long offset = Long.parseLong(commands[2]);
+        long length = Long.parseLong(commands[3]);
+        if (offset < 0 || length < 0 || offset > size) {
+            logger.info("LOAD_DATA " + commands[1] + " range out of bounds");
+            return null;
+        }
+        return new long[]{offset, Math.min(length, size - offset)};
+    }
+
+    /**
+     * Send a byte range of a cached file to a client
+     * @param cached Contents of the file, not modified
+     * @param client Client socket
+     * @param offset First byte to send
+     * @param length Number of bytes to send
+     */
+    private void sendBuffer(ByteBuffer cached, Socket client, int offset, int length) throws IOException {
+        WritableByteChannel target = client.getChannel() != null ? client.getChannel() : Channels.newChannel(client.getOutputStream());
+        ByteBuffer range = cached.duplicate();
+        range.position(offset).limit(offset + length);
+        while (range.hasRemaining()) {
+            target.write(range);
+        }
+    }
+
+    /**
+     * Copy one file to another Dstore for a REBALANCE, in steps paced by the bandwidth cap
+     * @param fileName File to be copied
+     * @param targetPort Port of the Dstore receiving it
+     * @return true if the whole file was sent
+     */
+    private boolean rebalanceCopy(String fileName, int targetPort) {
+        ByteBuffer inSegment = segments == null ? null : segments.get(fileName);
+        File existingFile = new File(filePath + File.separator + fileName);
+        long size = inSegment != null ? inSegment.remaining() : existingFile.length();
+
+        try (SocketChannel target = SocketChannel.open(new InetSocketAddress(InetAddress.getByName("localhost"), targetPort));
+                FileChannel source = inSegment != null ? null : FileChannel.open(existingFile.toPath(), StandardOpenOption.READ)) {
+            Socket dStoreSocket = target.socket();
+            dStoreSocket.setSoTimeout(timeout);
+            BufferedReader inDstore = new BufferedReader(new InputStreamReader(dStoreSocket.getInputStream()));
+            PrintWriter outDstore = new PrintWriter(dStoreSocket.getOutputStream(), true);
+            outDstore.println(Protocol.REBALANCE_STORE_TOKEN + " " + fileName + " " + size);
+            if (!Protocol.ACK_TOKEN.equals(inDstore.readLine())) {
+                logger.info("REBALANCE_STORE " + fileName + " not acknowledged by " + targetPort);
+                return false;
+            }
+
+            int start = inSegment != null ? inSegment.position() : 0;
+            long position = 0;
+            while (position < size) {
+                long end = position + Math.min(TRANSFER_CHUNK, size - position);
+                if (rebalanceLimit != null) {
+                    rebalanceLimit.acquire(end - position);
+                }
+                if (inSegment != null) {
+                    inSegment.limit(start + (int) end);
+                    while (inSegment.hasRemaining()) {
+                        target.write(inSegment);
+                    }
+                    position = end;
+                } else {
+                    while (position < end) {
+                        long transferred = source.transferTo(position, end - position, target);
+                        if (transferred <= 0) {
+                            throw new EOFException(fileName + " ended at byte " + position);
+                        }
+                        position += transferred;
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            logger.info("Rebalance copy of " + fileName + " to " + targetPort + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Thread to process Controller
      */
-    class ControllerThread extends Thread {
+    class ControllerThread implements Runnable {
         private Socket controller;
 
         public ControllerThread(Socket controller) {
@@ -115,27 +910,45 @@ public class Dstore {
         public void run() {
             //Controller Operations
             try {
-                BufferedReader readMsg = new BufferedReader(new InputStreamReader(controller.getInputStream()));
-                PrintWriter sendMsg = new PrintWriter(controller.getOutputStream(), true);
-            
-                String readline = null;
+                //Read bytes, not chars, so text lines and frames can follow each other
+                InputStream readMsg = new BufferedInputStream(controller.getInputStream());
+                String[] commands = null;
                 
-                //Join Controller
-                sendMsg.println(Protocol.JOIN_TOKEN + " " + port);
-                logger.info("[" + port + " -> " + controller.getPort() + "] " + Protocol.JOIN_TOKEN + " " + port);
+                //Join Controller, asking for frames if enabled
+                if (framed) {
+                    sendController(Protocol.JOIN_TOKEN, String.valueOf(port), Protocol.FRAMED_TOKEN, String.valueOf(Frames.VERSION));
+                } else {
+                    sendController(Protocol.JOIN_TOKEN, String.valueOf(port));
+                }
 
                 //Process Operations
                 while(true) {
-                        readline = readMsg.readLine();
-                        if(readline != null) {
-                            logger.info("[From Controller] " + controller.getPort() + ": " + readline);
-                            String[] commands = readline.split(" ");
+                        commands = Frames.read(readMsg);
+                        if (commands == null) {
+                            throw new EOFException("Controller closed the connection");
+                        }
+                        if(commands.length > 0) {
+                            if (logger.isLoggable(Level.INFO)) {
+                                logger.info("[From Controller] " + controller.getPort() + ": " + String.join(" ", commands));
+                            }
                             var command = commands[0].trim();
 
-                            //COMMAND: JOIN
+                            //COMMAND: JOIN_SUCCESS [FRAMED version]
                             if(command.equals(Protocol.JOIN_SUCCESS_TOKEN)) {
+                                if (commands.length >= 3 && commands[1].equals(Protocol.FRAMED_TOKEN)
+                                        && Integer.parseInt(commands[2]) != Frames.VERSION) {
+                                    //Its frames would be decoded with another opcode table
+                                    throw new IOException("Controller frames version " + commands[2] + ", this DStore " + Frames.VERSION);
+                                }
                                 controllerConnected = true;
-                                logger.info("Successfully build connection with Controller");
+                                controllerFramed = commands.length >= 3 && commands[1].equals(Protocol.FRAMED_TOKEN);
+                                logger.info("Successfully build connection with Controller" + (controllerFramed ? ", framed" : ""));
+
+                                //Announce kept files, so they can be loaded before the next rebalance
+                                if (keepFiles && !fileList.isEmpty()) {
+                                    sendList();
+                                }
+                                startHeartbeats();
                             }
                             
                             //COMMAND: REMOVE
@@ -146,19 +959,58 @@ public class Dstore {
                                 }
                                 
                                 String fileName = commands[1];
+                                try {
+                                    if (segments != null && segments.remove(fileName)) {
+                                        sendController(Protocol.REMOVE_ACK_TOKEN, fileName);
+                                        deleted(fileName);
+                                        continue;
+                                    }
+                                } catch (IOException e) {
+                                    //Not acked, the controller times the REMOVE out and the file stays listed
+                                    logger.log(Level.WARNING, "Cannot remove " + fileName + " from the segments", e);
+                                    continue;
+                                }
+
                                 File file = new File(filePath + File.separator + fileName);
                                 if(!file.exists() || !file.isFile()) {
                                     logger.info("File not exists");
-                                    sendMsg.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
-                                    logger.info("[" + port + " -> " + controller.getPort() + "] " + Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
+                                    sendController(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, fileName);
                                 } 
                                 
                                 if(file.delete()) {
-                                    sendMsg.println(Protocol.REMOVE_ACK_TOKEN + " " + fileName);
-                                    logger.info("[" + port + " -> " + controller.getPort() + "] " + Protocol.REMOVE_ACK_TOKEN + " " + fileName);
-                                    if(fileList.containsKey(fileName)) {
-                                        fileList.remove(fileName);
+                                    sendController(Protocol.REMOVE_ACK_TOKEN, fileName);
+                                    deleted(fileName);
+                                }
+                            }
+
+                            //COMMAND: STORE_ABORT filename, the controller gave up on a STORE
+                            else if (command.equals(Protocol.STORE_ABORT_TOKEN)) {
+                                if (commands.length != 2) {
+                                    logger.info("Wrong STORE_ABORT command");
+                                    continue;
+                                }
+                                dropPartials(commands[1]);
+                            }
+
+                            //COMMAND: REMOVE_BATCH filename filename ..., acked with every file no longer here, held or not
+                            else if (command.equals(Protocol.REMOVE_BATCH_TOKEN)) {
+                                List<String> names = Arrays.asList(commands).subList(1, commands.length);
+                                List<String> removed = new ArrayList<>(names.size());
+                                for (String fileName : names) {
+                                    try {
+                                        if (segments == null || !segments.remove(fileName)) {
+                                            new File(filePath + File.separator + fileName).delete();
+                                        }
+                                    } catch (IOException e) {
+                                        //Not acked, the controller times this file out and it stays listed
+                                        logger.log(Level.WARNING, "Cannot remove " + fileName + " from the segments", e);
+                                        continue;
                                     }
+                                    deleted(fileName);
+                                    removed.add(fileName);
+                                }
+                                if (!removed.isEmpty()) {
+                                    sendController(Protocol.REMOVE_ACK_BATCH_TOKEN, removed);
                                 }
                             }
 
@@ -169,61 +1021,21 @@ public class Dstore {
                                     continue;
                                 }
 
-                                String list = "";
-                                if (fileList.size() != 0) {
-                                    for (String fileName : fileList.keySet()) {
-                                        list += " " + fileName;
-                                    }
-                                }
-
-                                sendMsg.println(Protocol.LIST_TOKEN + list);
-                                logger.info("[" + port + " -> " + controller.getPort() + "] " + Protocol.LIST_TOKEN + list);
+                                sendList();
                             }
 
-                            //REBALANCE
+                            //REBALANCE, copies run on the transfer executor so REMOVE and LIST are still served
                             else if (command.equals(Protocol.REBALANCE_TOKEN)) {
-                                Integer filesToSend = Integer.parseInt(commands[1]);
-                                Integer index = 2;
-
-                                for (int i = 0; i < filesToSend; i++) {
-                                    String filename = commands[index];
-                                    Integer portSendCount = Integer.parseInt(commands[index + 1]);
-
-                                    for (int j = index + 2; j <= index + 1 + portSendCount; j++) {
-
-                                        Socket dStoreSocket = new Socket(InetAddress.getByName("localhost"), Integer.parseInt(commands[j]));
-                                        BufferedReader inDstore = new BufferedReader(new InputStreamReader(dStoreSocket.getInputStream()));
-                                        PrintWriter outDstore = new PrintWriter(dStoreSocket.getOutputStream(), true);
-                                        File existingFile = new File(filePath + File.separator + filename);
-                                        Integer filesize = (int) existingFile.length(); // casting long to int file size limited to fat32
-                                        outDstore.println(Protocol.REBALANCE_STORE_TOKEN + " " + filename + " " + filesize);
-
-                                        if (inDstore.readLine() == Protocol.ACK_TOKEN) {
-                                            FileInputStream inf = new FileInputStream(existingFile);
-                                            OutputStream out = dStoreSocket.getOutputStream();
-                                            out.write(inf.readNBytes(filesize));
-                                            out.flush();
-                                            inf.close();
-                                            out.close();
-                                            dStoreSocket.close();
-                                        } else {
-                                            dStoreSocket.close();
-                                        }
-                                    }
-                                    index = index + portSendCount + 2; // ready index for next file
-                                }
+                                rebalance(commands);
+                            }
 
-                                Integer fileRemoveCount = Integer.parseInt(commands[index]);
-                                for (int z = index + 1; z < index + 1 + fileRemoveCount; z++) {
-                                    File existingFile = new File(filePath + File.separator + commands[z]);
-                                    if (existingFile.exists()) {
-                                        existingFile.delete();
-                                    }
+                            //COMMAND: REPAIR filename port ..., copies of a file that lost a replica
+                            else if (command.equals(Protocol.REPAIR_TOKEN)) {
+                                if (commands.length < 3) {
+                                    logger.info("Wrong REPAIR command");
+                                    continue;
                                 }
-
-
-                                sendMsg.println(Protocol.REBALANCE_COMPLETE_TOKEN);
-                                logger.info("[" + port + " -> " + controller.getPort() + "] " + Protocol.REBALANCE_COMPLETE_TOKEN);
+                                repair(commands[1], Arrays.asList(commands).subList(2, commands.length));
                             }
 
                             else {
@@ -244,12 +1056,645 @@ public class Dstore {
             }
         }
 
+        /**
+         * Copy a file to the Dstores replacing a lost replica on the transfer executor, then send
+         * REPAIR_COMPLETE filename port ... with the Dstores that got the whole file
+         * @param fileName File to be copied
+         * @param targetPorts Ports of the Dstores receiving it
+         */
+        private void repair(String fileName, List<String> targetPorts) {
+            List<String> copied = new ArrayList<>();
+            List<CompletableFuture<Void>> copies = new ArrayList<>();
+            for (String targetPort : targetPorts) {
+                copies.add(CompletableFuture.runAsync(() -> {
+                    if (rebalanceCopy(fileName, Integer.parseInt(targetPort))) {
+                        synchronized (copied) {
+                            copied.add(targetPort);
+                        }
+                    }
+                }, rebalanceTransfers));
+            }
+            CompletableFuture.allOf(copies.toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> {
+                List<String> fields = new ArrayList<>();
+                fields.add(fileName);
+                synchronized (copied) {
+                    fields.addAll(copied);
+                }
+                sendController(Protocol.REPAIR_COMPLETE_TOKEN, fields);
+            });
+        }
+
+        /**
+         * Start the copies of a REBALANCE files_to_send_count file port_count port ... files_to_remove_count file ...
+         * Once every copy is done the dropped files are deleted, except those whose copy failed, and
+         * REBALANCE_COMPLETE file port ... is sent with every copy that failed, so the controller leaves those
+         * replicas where they are
+         * @param commands REBALANCE command
+         */
+        private void rebalance(String[] commands) {
+            long startTime = System.currentTimeMillis();
+            int filesToSend = Integer.parseInt(commands[1]);
+            int index = 2;
+            List<CompletableFuture<Void>> copies = new ArrayList<>();
+            Set<String> failed = ConcurrentHashMap.newKeySet();
+            List<String> failedCopies = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger sent = new AtomicInteger();
+
+            for (int i = 0; i < filesToSend; i++) {
+                String fileName = commands[index];
+                int portSendCount = Integer.parseInt(commands[index + 1]);
+                for (int j = index + 2; j <= index + 1 + portSendCount; j++) {
+                    int targetPort = Integer.parseInt(commands[j]);
+                    copies.add(CompletableFuture.runAsync(() -> {
+                        if (rebalanceCopy(fileName, targetPort)) {
+                            sent.incrementAndGet();
+                        } else {
+                            failed.add(fileName);
+                            failedCopies.addAll(List.of(fileName, String.valueOf(targetPort)));
+                        }
+                    }, rebalanceTransfers));
+                }
+                index = index + portSendCount + 2; // ready index for next file
+            }
+
+            int fileRemoveCount = Integer.parseInt(commands[index]);
+            List<String> toRemove = Arrays.asList(commands).subList(index + 1, index + 1 + fileRemoveCount);
+
+            CompletableFuture.allOf(copies.toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> {
+                for (String fileName : toRemove) {
+                    //Kept while a copy did not arrive, the controller is told below
+                    if (failed.contains(fileName)) {
+                        continue;
+                    }
+                    try {
+                        if (segments != null) {
+                            segments.remove(fileName);
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Cannot remove " + fileName + " from the segments", e);
+                    }
+                    File existingFile = new File(filePath + File.separator + fileName);
+                    if (existingFile.exists()) {
+                        existingFile.delete();
+                    }
+                    deleted(fileName);
+                }
+                logger.info("Rebalance sent " + sent.get() + "/" + copies.size() + " copies in "
+                        + (System.currentTimeMillis() - startTime) + " ms");
+                synchronized (failedCopies) {
+                    sendController(Protocol.REBALANCE_COMPLETE_TOKEN, new ArrayList<>(failedCopies));
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Log-structured store for small files: contents are appended to memory-mapped segment files next to the
+     * folder, and an in-memory index maps every name to its bytes. A record is the magic number, PUT or DEL,
+     * the name, the size, the CRC32C of the data and the data. Replaying the segments in order rebuilds the
+     * index, stopping at the first record that does not check out. The oldest sealed segment is compacted
+     * once half of it is dead: its live records are appended to the active segment and the file is deleted.
+     * Compacting oldest first means a dropped DEL can only refer to a PUT that is gone as well.
+     * Records reach the page cache when they are appended and are only forced to disk by compaction, so a
+     * crash of the DStore loses nothing but a crash of the machine can lose the latest ones, as it can for
+     * plain files, which are not forced either
+     */
+    class SegmentStore {
+        private static final int MAGIC = 0x5E6D1E01;
+        private static final byte PUT = 1;
+        private static final byte DEL = 2;
+        private static final int HEADER = 4 + 1 + 2 + 4 + 4; //Magic, type, name length, size, CRC
+        private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+        private static final long MAX_THRESHOLD = 16 * 1024 * 1024;
+
+        private final File folder;
+        private final int segmentSize;
+        private final long threshold;
+        private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+        private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+        private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private Segment active;
+
+        /**
+         * One segment file, mapped whole
+         */
+        private class Segment {
+            final int id;
+            final File file;
+            final MappedByteBuffer map;
+            int end = 0; //First free byte
+            long dead = 0; //Bytes of records no longer in the index
+
+            Segment(int id) throws IOException {
+                this.id = id;
+                this.file = new File(folder, String.format("segment-%08d.log", id));
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                }
+            }
+        }
+
+        /**
+         * Place of a file in a segment
+         */
+        private class Entry {
+            final Segment segment;
+            final int record; //Offset of the record
+            final int data; //Offset of the data
+            final int size;
+
+            Entry(Segment segment, int record, int data, int size) {
+                this.segment = segment;
+                this.record = record;
+                this.data = data;
+                this.size = size;
+            }
+
+            int length() {
+                return data + size - record;
+            }
+        }
+
+        /**
+         * @param folder Folder of the segment files
+         * @param threshold Largest file kept in segments, bigger ones stay plain files, at most 16 MiB
+         */
+        public SegmentStore(File folder, long threshold) {
+            this.folder = folder;
+            this.threshold = Math.min(threshold, MAX_THRESHOLD);
+            this.segmentSize = (int) Math.max(SEGMENT_SIZE, 4 * (HEADER + 0xFFFF + this.threshold));
+        }
+
+        /**
+         * Whether a file of this size belongs in the segments
+         */
+        public boolean accepts(long fileSize) {
+            return fileSize <= threshold;
+        }
+
+        /**
+         * Delete every segment, for a DStore starting empty
+         */
+        public synchronized void clear() throws IOException {
+            folder.mkdirs();
+            clearFolder(folder);
+            active = newSegment(1);
+        }
+
+        /**
+         * Replay the segments of a previous run into the index
+         * @return the size of every file found
+         */
+        public synchronized Map<String, Long> recover() throws IOException {
+            folder.mkdirs();
+            File[] files = folder.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+            Arrays.sort(files);
+            for (File file : files) {
+                Segment segment = new Segment(Integer.parseInt(file.getName().substring(8, 16)));
+                segments.put(segment.id, segment);
+                replay(segment);
+            }
+            active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+
+            Map<String, Long> sizes = new HashMap<>();
+            index.forEach((name, entry) -> sizes.put(name, (long) entry.size));
+            logger.info("Recovered " + sizes.size() + " files from " + segments.size() + " segments");
+            return sizes;
+        }
+
+        private void replay(Segment segment) {
+            ByteBuffer map = segment.map.duplicate();
+            CRC32C crc = new CRC32C();
+            int end = 0;
+            while (end + HEADER <= segmentSize) {
+                int record = end;
+                map.position(record);
+                if (map.getInt() != MAGIC) {
+                    break;
+                }
+                byte type = map.get();
+                int nameLength = map.getShort() & 0xFFFF;
+                if (map.position() + nameLength + 8 > segmentSize) {
+                    break;
+                }
+                byte[] name = new byte[nameLength];
+                map.get(name);
+                int size = map.getInt();
+                int checksum = map.getInt();
+                int data = map.position();
+                if (size < 0 || data + size > segmentSize) {
+                    break;
+                }
+                ByteBuffer contents = map.slice().limit(size);
+                crc.reset();
+                crc.update(contents);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                end = data + size;
+
+                String fileName = new String(name, StandardCharsets.UTF_8);
+                Entry old = type == PUT ? index.put(fileName, new Entry(segment, record, data, size)) : index.remove(fileName);
+                if (old != null) {
+                    old.segment.dead += old.length();
+                }
+                if (type == DEL) {
+                    segment.dead += data - record;
+                }
+            }
+            segment.end = end;
+        }
+
+        private Segment newSegment(int id) throws IOException {
+            Segment segment = new Segment(id);
+            segments.put(id, segment);
+            return segment;
+        }
+
+        public boolean contains(String fileName) {
+            return index.containsKey(fileName);
+        }
+
+        /**
+         * Contents of a file
+         * @param fileName File name
+         * @return a read-only view of the bytes, or null if the file is not in the segments
+         */
+        public ByteBuffer get(String fileName) {
+            Entry entry = index.get(fileName);
+            if (entry == null) {
+                return null;
+            }
+            return entry.segment.map.asReadOnlyBuffer().position(entry.data).limit(entry.data + entry.size).slice();
+        }
+
+        /**
+         * Append a file, replacing any earlier version
+         * @param fileName File name
+         * @param contents Bytes of the file, consumed
+         */
+        public synchronized void put(String fileName, ByteBuffer contents) throws IOException {
+            CRC32C crc = new CRC32C();
+            crc.update(contents.duplicate());
+            int size = contents.remaining();
+            int record = append(PUT, fileName, contents, (int) crc.getValue());
+            Entry old = index.put(fileName, new Entry(active, record, active.end - size, size));
+            if (old != null) {
+                old.segment.dead += old.length();
+                compactLater();
+            }
+        }
+
+        /**
+         * Remove a file
+         * @param fileName File name
+         * @return false if the file is not in the segments
+         */
+        public synchronized boolean remove(String fileName) throws IOException {
+            Entry old = index.get(fileName);
+            if (old == null) {
+                return false;
+            }
+            //The file stays if its DEL cannot be written, as it would come back on the next start
+            int record = append(DEL, fileName, ByteBuffer.allocate(0), 0);
+            index.remove(fileName);
+            active.dead += active.end - record;
+            old.segment.dead += old.length();
+            compactLater();
+            return true;
+        }
+
+        /**
+         * Write a record at the end of the active segment, rolling over to a new one when it is full
+         * @return offset of the record
+         */
+        private int append(byte type, String fileName, ByteBuffer contents, int checksum) throws IOException {
+            byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+            int length = HEADER + name.length + contents.remaining();
+            if (active.end + length > segmentSize) {
+                active = newSegment(active.id + 1);
+            }
+
+            ByteBuffer map = active.map.duplicate().position(active.end);
+            map.putInt(MAGIC).put(type).putShort((short) name.length).put(name)
+                    .putInt(contents.remaining()).putInt(checksum).put(contents);
+            int record = active.end;
+            active.end += length;
+            return record;
+        }
+
+        private void compactLater() {
+            Map.Entry<Integer, Segment> oldest = segments.firstEntry();
+            if (oldest.getValue() != active && oldest.getValue().dead * 2 >= oldest.getValue().end) {
+                compactor.execute(this::compact);
+            }
+        }
+
+        /**
+         * Move the live records of the oldest segments to the active one and delete them, while they are
+         * mostly dead
+         */
+        private synchronized void compact() {
+            while (segments.firstEntry().getValue() != active) {
+                Segment oldest = segments.firstEntry().getValue();
+                if (oldest.dead * 2 < oldest.end) {
+                    return;
+                }
+
+                long start = System.currentTimeMillis();
+                int moved = 0;
+                try {
+                    for (Map.Entry<String, Entry> live : index.entrySet()) {
+                        Entry entry = live.getValue();
+                        if (entry.segment == oldest) {
+                            ByteBuffer contents = oldest.map.duplicate().position(entry.data).limit(entry.data + entry.size).slice();
+                            int checksum = oldest.map.getInt(entry.data - 4);
+                            int record = append(PUT, live.getKey(), contents, checksum);
+                            index.put(live.getKey(), new Entry(active, record, active.end - entry.size, entry.size));
+                            moved++;
+                        }
+                    }
+                    active.map.force();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Compaction of " + oldest.file.getName() + " failed", e);
+                    return;
+                }
+
+                //Readers may still hold views of the mapping, it stays valid after the file is gone
+                segments.remove(oldest.id);
+                oldest.file.delete();
+                logger.info("Compacted " + oldest.file.getName() + ", moved " + moved + " files in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "segments " + segments.size() + ", " + index.size() + " files";
+        }
+    }
+
+    /**
+     * Sidecar manifest of the stored files, kept next to the folder as name, size and CRC32C records.
+     * Records are appended as files come and go, and compacted on warm start
+     */
+    class Manifest {
+        private static final String ADD = "+";
+        private static final String DROP = "-";
+        private final File manifestFile;
+        private final ReentrantLock lock = new ReentrantLock();
+        private BufferedWriter writer; //Appends records, opened by the first one
+
+        public Manifest(String folder) {
+            this.manifestFile = new File(folder + ".manifest");
+        }
+
+        /**
+         * Read the manifest
+         * @return size and checksum of every recorded file
+         */
+        public Map<String, long[]> read() {
+            Map<String, long[]> entries = new HashMap<>();
+            lock.lock();
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] record = line.split(" ");
+                    try {
+                        if (record.length == 4 && record[0].equals(ADD)) {
+                            entries.put(record[1], new long[] {Long.parseLong(record[2]), Long.parseLong(record[3])});
+                        } else if (record.length == 2 && record[0].equals(DROP)) {
+                            entries.remove(record[1]);
+                        }
+                    } catch (NumberFormatException e) {
+                        logger.info("Skipped torn manifest record: " + line);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                //Nothing recorded yet
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Manifest read failed", e);
+            } finally {
+                lock.unlock();
+            }
+            return entries;
+        }
+
+        /**
+         * Record a stored file
+         * @param fileName File stored
+         * @param fileSize Size of the file
+         * @param checksum CRC32C of the file
+         */
+        public void add(String fileName, long fileSize, long checksum) {
+            append(ADD + " " + fileName + " " + fileSize + " " + checksum);
+        }
+
+        /**
+         * Record a removed file
+         * @param fileName File removed
+         */
+        public void drop(String fileName) {
+            append(DROP + " " + fileName);
+        }
+
+        private void append(String record) {
+            lock.lock();
+            try {
+                if (writer == null) {
+                    writer = new BufferedWriter(new FileWriter(manifestFile, true));
+                }
+                writer.write(record);
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Manifest write failed", e);
+                closeWriter();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Close the appending writer, the next record opens it again
+         */
+        private void closeWriter() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Manifest close failed", e);
+                }
+                writer = null;
+            }
+        }
+
+        /**
+         * Replace the manifest with the given entries
+         * @param entries Verified size and checksum of every file
+         */
+        public void rewrite(Map<String, long[]> entries) throws IOException {
+            File tmpFile = new File(manifestFile.getPath() + ".tmp");
+            lock.lock();
+            try {
+                closeWriter();
+                try (BufferedWriter tmpWriter = new BufferedWriter(new FileWriter(tmpFile))) {
+                    for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+                        tmpWriter.write(ADD + " " + entry.getKey() + " " + entry.getValue()[0] + " " + entry.getValue()[1]);
+                        tmpWriter.newLine();
+                    }
+                }
+                Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Token bucket shared by the rebalance copies. It refills at the rate and holds one second of tokens at
+     * most. A copy takes the tokens of its next step even if that leaves the bucket in debt, then sleeps
+     * until the debt is paid, so waiting copies are served in arrival order
+     */
+    class TokenBucket {
+        private final long rate;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        /**
+         * @param rate Bytes per second
+         */
+        public TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        /**
+         * Wait until a number of bytes may be sent
+         * @param bytes Bytes about to be sent
+         */
+        public void acquire(long bytes) throws InterruptedIOException {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(rate, tokens + (now - refilled) * rate / 1e9);
+                refilled = now;
+                tokens -= bytes;
+                waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+            }
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+    }
+
+    /**
+     * Least recently used files, read into direct buffers so that hits go to the socket without a copy.
+     * Files larger than an eighth of the budget are not cached, so one big LOAD cannot flush the hot set.
+     * A load racing with an invalidation does not insert what it read
+     */
+    class ReadCache {
+        private final long budget;
+        private final long maxEntry;
+        private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long used = 0;
+        private long invalidations = 0;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private static final long REPORT_EVERY = 1000; //Lookups between two statistics lines in the log
+
+        public ReadCache(long budget) {
+            this.budget = budget;
+            this.maxEntry = budget / 8;
+        }
+
+        /**
+         * Contents of a file, from memory or read into it
+         * @param fileName File name
+         * @param file The stored file
+         * @return a read-only view of the whole file, or null if it is too large to cache
+         */
+        public ByteBuffer get(String fileName, File file) throws IOException {
+            long generation;
+            synchronized (this) {
+                ByteBuffer cached = entries.get(fileName);
+                if (cached != null) {
+                    report(hits.incrementAndGet() + misses.get());
+                    return cached.duplicate();
+                }
+                generation = invalidations;
+            }
+            report(misses.incrementAndGet() + hits.get());
+
+            long size = file.length();
+            if (size > maxEntry) {
+                return null;
+            }
+            ByteBuffer contents = ByteBuffer.allocateDirect((int) size);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (contents.hasRemaining()) {
+                    if (channel.read(contents) < 0) {
+                        throw new EOFException(fileName + " shorter than " + size + " bytes");
+                    }
+                }
+            }
+            contents.flip();
+            ByteBuffer readOnly = contents.asReadOnlyBuffer();
+
+            synchronized (this) {
+                if (generation == invalidations && !entries.containsKey(fileName)) {
+                    entries.put(fileName, readOnly);
+                    used += size;
+                    Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+                    while (used > budget && eldest.hasNext()) {
+                        used -= eldest.next().getValue().capacity();
+                        eldest.remove();
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+            return readOnly.duplicate();
+        }
+
+        private void report(long lookups) {
+            if (lookups % REPORT_EVERY == 0) {
+                logger.info(toString());
+            }
+        }
+
+        /**
+         * Drop a file that was removed or replaced
+         * @param fileName File name
+         */
+        public synchronized void invalidate(String fileName) {
+            invalidations++;
+            ByteBuffer cached = entries.remove(fileName);
+            if (cached != null) {
+                used -= cached.capacity();
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "cache " + entries.size() + " files, " + used + "/" + budget + " bytes, "
+                    + hits.get() + " hits, " + misses.get() + " misses, " + evictions.get() + " evictions";
+        }
     }
 
     /**
      * Thread to process Client
      */
-    class ClientThread extends Thread {
+    class ClientThread implements Runnable {
         private Socket client;
         private Socket controller;
         public ClientThread(Socket client, Socket controller) {
@@ -260,7 +1705,6 @@ public class Dstore {
         @Override
         public void run() {
             try {
-                PrintWriter sendController = new PrintWriter(controller.getOutputStream(), true);
                 PrintWriter sendClinet = new PrintWriter(client.getOutputStream(), true);
                 BufferedReader receiveClient = new BufferedReader(new InputStreamReader(client.getInputStream()));
                 InputStream writeStream = client.getInputStream();
@@ -286,26 +1730,130 @@ public class Dstore {
 
                             //Receive file stream from Client
                             String fileName = commands[1].trim();
-                            Integer fileSize = Integer.parseInt(commands[2]);
-                            File file = new File(filePath + File.separator + fileName);
-                            FileOutputStream fos = new FileOutputStream(file);
-
-                            var startTime = System.currentTimeMillis();
-                            while(System.currentTimeMillis() <= startTime + timeout) {
-                                fos.write(writeStream.readNBytes(fileSize));
-                                sendController.println(Protocol.STORE_ACK_TOKEN + " " + fileName);
-                                logger.info("[" + port + " -> " + cport + "] " + Protocol.STORE_ACK_TOKEN + " " + fileName);
-                                fileList.put(fileName, fileSize);
-                                break;
+                            long fileSize = Long.parseLong(commands[2]);
+
+                            client.setSoTimeout(timeout);
+                            if (receiveAndKeep(writeStream, fileName, fileSize)) {
+                                sendController(Protocol.STORE_ACK_TOKEN, fileName);
+                            } else {
+                                logger.info("STORE " + fileName + " incomplete, file discarded");
                             }
 
                             //Done. Close all connections
-                            fos.flush();
-                            fos.close();
                             client.close();
                             return;
                         } 
 
+                        //COMMAND: STORE_BATCH name size name size ..., the contents follow the ACK back to back
+                        else if (command.equals(Protocol.STORE_BATCH_TOKEN)) {
+                            if (commands.length % 2 != 1) {
+                                logger.info("Wrong STORE_BATCH command");
+                                continue;
+                            }
+                            sendClinet.println(Protocol.ACK_TOKEN);
+
+                            client.setSoTimeout(timeout);
+                            List<String> storedNames = new ArrayList<>();
+                            for (int i = 1; i < commands.length; i += 2) {
+                                if (!receiveAndKeep(writeStream, commands[i], Long.parseLong(commands[i + 1]))) {
+                                    logger.info("STORE_BATCH stopped at " + commands[i] + ", " + storedNames.size() + " files stored");
+                                    break;
+                                }
+                                storedNames.add(commands[i]);
+                            }
+                            if (!storedNames.isEmpty()) {
+                                sendController(Protocol.STORE_ACK_BATCH_TOKEN, storedNames);
+                            }
+
+                            client.close();
+                            return;
+                        }
+
+                        //COMMAND: STORE_CHAIN, store and pass the data on to the rest of the chain
+                        else if (command.equals(Protocol.STORE_CHAIN_TOKEN)) {
+                            if (commands.length < 3) {
+                                logger.info("Wrong STORE_CHAIN command");
+                                continue;
+                            }
+
+                            String fileName = commands[1].trim();
+                            long fileSize = Long.parseLong(commands[2]);
+                            File file = new File(filePath + File.separator + fileName);
+
+                            //Set up the rest of the chain before taking any data
+                            Socket next = null;
+                            if (commands.length > 3) {
+                                next = openNextHop(fileName, fileSize, Arrays.copyOfRange(commands, 3, commands.length));
+                            }
+                            sendClinet.println(Protocol.ACK_TOKEN);
+
+                            client.setSoTimeout(timeout);
+                            try {
+                                CRC32C crc = new CRC32C();
+                                if (receiveAndForward(writeStream, file, fileSize, next, crc)) {
+                                    keep(fileName, file, fileSize, crc.getValue());
+                                    sendController(Protocol.STORE_ACK_TOKEN, fileName);
+                                } else {
+                                    logger.info("STORE_CHAIN " + fileName + " incomplete, file discarded");
+                                }
+                            } finally {
+                                if (next != null) {
+                                    next.close();
+                                }
+                            }
+
+                            //Done. Close all connections
+                            client.close();
+                            return;
+                        }
+
+                        //COMMAND: STORE_RESUME, answered with ACK and the offset to carry on from
+                        else if (command.equals(Protocol.STORE_RESUME_TOKEN)) {
+                            if (commands.length != 4) {
+                                logger.info("Wrong STORE_RESUME command");
+                                continue;
+                            }
+
+                            String fileName = commands[1].trim();
+                            long fileSize = Long.parseLong(commands[2]);
+                            long expected = Long.parseUnsignedLong(commands[3], 16);
+                            //Only an upload of the same content may carry on from the chunks kept
+                            String partialName = fileName + "." + fileSize + "." + Long.toHexString(expected) + ".part";
+                            if (!uploading.add(partialName)) {
+                                logger.info("STORE_RESUME " + fileName + " already in progress");
+                                client.close();
+                                return;
+                            }
+
+                            try {
+                                File partial = new File(partialPath + File.separator + partialName);
+                                long offset = committedLength(partial, fileSize);
+                                CRC32C crc = new CRC32C();
+                                if (offset > 0) {
+                                    checksum(partial, offset, crc);
+                                }
+                                sendClinet.println(Protocol.ACK_TOKEN + " " + offset);
+
+                                client.setSoTimeout(timeout);
+                                if (!receiveChunks(writeStream, partial, offset, fileSize, crc)) {
+                                    logger.info("STORE_RESUME " + fileName + " interrupted, " + committedLength(partial, fileSize) + " bytes kept");
+                                } else if (crc.getValue() != expected) {
+                                    logger.info("STORE_RESUME " + fileName + " does not match its checksum, dropped");
+                                    partial.delete();
+                                } else {
+                                    File file = new File(filePath + File.separator + fileName);
+                                    Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                                    keep(fileName, file, fileSize, expected);
+                                    sendController(Protocol.STORE_ACK_TOKEN, fileName);
+                                }
+                            } finally {
+                                uploading.remove(partialName);
+                            }
+
+                            client.close();
+                            return;
+                        }
+
                         //COMMAND REBALANCE_STORE
                         else if (command.equals(Protocol.REBALANCE_STORE_TOKEN)) {
 
@@ -316,57 +1864,56 @@ public class Dstore {
 
                             String fileName = commands[1].trim();
                             sendClinet.println(Protocol.ACK_TOKEN);
-                            int filesize = Integer.parseInt(commands[2]);
-                            File outputFile = new File(filePath + File.separator + fileName);
-                            FileOutputStream fos = new FileOutputStream(outputFile);
-                            fos.write(writeStream.readNBytes(filesize));
-                            fos.flush();
-                            fos.close();
+                            long filesize = Long.parseLong(commands[2]);
+
+                            client.setSoTimeout(timeout);
+                            if (!receiveAndKeep(writeStream, fileName, filesize)) {
+                                logger.info("REBALANCE_STORE " + fileName + " incomplete, file discarded");
+                            }
                             client.close();
                             return;
                         }
 
-                        //COMMAND: LOAD_DATA
+                        //COMMAND: LOAD_DATA [offset length]
                         else if(command.equals(Protocol.LOAD_DATA_TOKEN)) {
-                            if(commands.length != 2) {
+                            if(commands.length != 2 && commands.length != 4) {
                                 logger.info("Wrong LOAD_DATA command");
                                 continue;
                             } 
                             
                             String fileName = commands[1];
                             File file = new File(filePath + File.separator + fileName);
+                            long startTime = System.nanoTime();
+                            ByteBuffer inSegment = segments == null ? null : segments.get(fileName);
 
-                            if(!file.exists() || !file.isFile()) {
+                            if(inSegment == null && (!file.exists() || !file.isFile())) {
                                 logger.info("Load File Not Exists");
                                 client.close();
+                                reportLoad(startTime);
                                 return;
                             }
 
-                            FileInputStream fileStream = new FileInputStream(file);
-                            OutputStream sendStream = client.getOutputStream();
-                            var dos = new DataOutputStream(sendStream);
-
-                            dos.writeUTF(file.getName());
-                            dos.flush();
-                            dos.writeLong(file.length());
-                            dos.flush();
-
-                            //Start Sending
-                            byte[] bytes = new byte[1024];
-                            int length = 0;
-                            long progress = 0;
-                            while((length = fileStream.read(bytes, 0, bytes.length)) != -1) {
-                                dos.write(bytes, 0, length);
-                                dos.flush();
-                                progress += length;
-                                logger.info("| " + (100*progress/file.length()) + "% |");
+                            //Start Sending, the client reads exactly the file size, or the range, in raw bytes
+                            try {
+                                ByteBuffer cached = inSegment != null ? inSegment : readCache == null ? null : readCache.get(fileName, file);
+                                if (cached != null) {
+                                    long[] range = loadRange(commands, cached.remaining());
+                                    if (range != null) {
+                                        sendBuffer(cached, client, (int) range[0], (int) range[1]);
+                                    }
+                                } else {
+                                    try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                                        long[] range = loadRange(commands, fileChannel.size());
+                                        if (range != null) {
+                                            sendFile(fileChannel, client, fileName, range[0], range[1]);
+                                        }
+                                    }
+                                }
+                            } finally {
+                                reportLoad(startTime);
                             }
 
                             //Done. Close all connections
-                            dos.flush();
-                            dos.close();
-                            fileStream.close();
-                            sendStream.close();
                             client.close();
                             return;
                         } 
@@ -390,8 +1937,46 @@ public class Dstore {
         
     }
 
+    /**
+     * Parse a byte count with an optional k, m or g suffix
+     * @param value Byte count, for example 256m
+     * @return the number of bytes
+     */
+    static long parseBytes(String value) {
+        String number = value.toLowerCase();
+        long unit = 1;
+        switch (number.charAt(number.length() - 1)) {
+            case 'k': unit = 1L << 10; break;
+            case 'm': unit = 1L << 20; break;
+            case 'g': unit = 1L << 30; break;
+            default: return Long.parseLong(number);
+        }
+        return Long.parseLong(number.substring(0, number.length() - 1)) * unit;
+    }
+
     public static void main(String[] args) {
         Dstore dStore = new Dstore(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), String.valueOf(args[3]));
+        for (int i = 4; i < args.length; i++) {
+            if (args[i].equals("virtual")) {
+                dStore.setVirtualThreads(true);
+            } else if (args[i].equals("keep")) {
+                dStore.setKeepFiles(true);
+            } else if (args[i].equals("framed")) {
+                dStore.setFramed(true);
+            } else if (args[i].equals("segments")) {
+                dStore.setSegmentThreshold(64 * 1024);
+            } else if (args[i].startsWith("segments=")) {
+                dStore.setSegmentThreshold(parseBytes(args[i].substring("segments=".length())));
+            } else if (args[i].startsWith("cache=")) {
+                dStore.setCacheBudget(parseBytes(args[i].substring("cache=".length())));
+            } else if (args[i].startsWith("rebalance-threads=")) {
+                dStore.setRebalanceThreads(Integer.parseInt(args[i].substring("rebalance-threads=".length())));
+            } else if (args[i].startsWith("rebalance-rate=")) {
+                dStore.setRebalanceRate(parseBytes(args[i].substring("rebalance-rate=".length())));
+            } else if (args[i].startsWith("heartbeat=")) {
+                dStore.setHeartbeatInterval(Long.parseLong(args[i].substring("heartbeat=".length())));
+            }
+        }
         dStore.start();
     }
 
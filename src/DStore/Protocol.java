@@ -3,22 +3,46 @@ public class Protocol {
   
     public static final String STORE_TOKEN = "STORE";
     
+    public static final String STORE_BATCH_TOKEN = "STORE_BATCH";
+    
     public static final String LOAD_TOKEN = "LOAD";
     
+    public static final String LOAD_BATCH_TOKEN = "LOAD_BATCH";
+    
     public static final String LOAD_DATA_TOKEN = "LOAD_DATA";
     
     public static final String RELOAD_TOKEN = "RELOAD";
     
     public static final String REMOVE_TOKEN = "REMOVE";
     
+    public static final String REMOVE_BATCH_TOKEN = "REMOVE_BATCH";
+    
     public static final String STORE_TO_TOKEN = "STORE_TO";
     
+    public static final String STORE_BATCH_TO_TOKEN = "STORE_BATCH_TO";
+    
+    public static final String STORE_CHAIN_TOKEN = "STORE_CHAIN";
+    
+    public static final String STORE_RESUME_TOKEN = "STORE_RESUME";
+    
     public static final String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
     
+    public static final String STORE_BATCH_COMPLETE_TOKEN = "STORE_BATCH_COMPLETE";
+    
     public static final String LOAD_FROM_TOKEN = "LOAD_FROM";
     
+    public static final String LOAD_STRIPED_TOKEN = "LOAD_STRIPED";
+    
+    public static final String LOAD_FROM_ALL_TOKEN = "LOAD_FROM_ALL";
+    
+    public static final String LOAD_FROM_BATCH_TOKEN = "LOAD_FROM_BATCH";
+    
+    public static final String LOAD_REPORT_TOKEN = "LOAD_REPORT";
+    
     public static final String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
     
+    public static final String REMOVE_BATCH_COMPLETE_TOKEN = "REMOVE_BATCH_COMPLETE";
+    
     public static final String REBALANCE_TOKEN = "REBALANCE";
     
     public static final String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST";
@@ -33,13 +57,31 @@ public class Protocol {
     
     public static final String STORE_ACK_TOKEN = "STORE_ACK";
     
+    public static final String STORE_ACK_BATCH_TOKEN = "STORE_ACK_BATCH";
+    
     public static final String REMOVE_ACK_TOKEN = "REMOVE_ACK";
     
+    public static final String REMOVE_ACK_BATCH_TOKEN = "REMOVE_ACK_BATCH";
+    
     public static final String JOIN_TOKEN = "JOIN";
     
     public static final String JOIN_SUCCESS_TOKEN = "JOIN_SUCCESS";
     
+    public static final String FRAMED_TOKEN = "FRAMED";
+    
+    public static final String REQUEST_TOKEN = "REQUEST";
+    
     public static final String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
     
     public static final String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+    
+    public static final String REBALANCE_PLAN_TOKEN = "REBALANCE_PLAN";
+    
+    public static final String HEARTBEAT_TOKEN = "HEARTBEAT";
+    
+    public static final String REPAIR_TOKEN = "REPAIR";
+    
+    public static final String REPAIR_COMPLETE_TOKEN = "REPAIR_COMPLETE";
+    
+    public static final String STORE_ABORT_TOKEN = "STORE_ABORT";
 }